@@ -0,0 +1,126 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+
+package com.stremebase.base;
+
+
+/**
+ * Count, sum, smallest and largest of a set of values, see for example {@link com.stremebase.map.ArrayMap#aggregateCell(int)}.
+ * DB.NULLs are never aggregated.
+ * @author olli
+ */
+public class Aggregate
+{
+  protected long count;
+  protected long sum;
+  protected long min = Long.MAX_VALUE;
+  protected long max = Long.MIN_VALUE;
+
+  /**
+   * Creates an empty aggregate
+   */
+  public Aggregate()
+  {
+  }
+
+  /**
+   * Creates an aggregate of known values
+   * @param count count of values
+   * @param sum sum of values
+   * @param min smallest value
+   * @param max largest value
+   */
+  public Aggregate(long count, long sum, long min, long max)
+  {
+    this.count = count;
+    this.sum = sum;
+    this.min = min;
+    this.max = max;
+  }
+
+  /**
+   * Adds a value
+   * @param value the value
+   */
+  public void add(long value)
+  {
+    count++;
+    sum += value;
+    if (value<min) min = value;
+    if (value>max) max = value;
+  }
+
+  /**
+   * Adds the values of another aggregate to this one
+   * @param other the other aggregate
+   * @return this
+   */
+  public Aggregate combine(Aggregate other)
+  {
+    count += other.count;
+    sum += other.sum;
+    if (other.min<min) min = other.min;
+    if (other.max>max) max = other.max;
+    return this;
+  }
+
+  /**
+   * Count of values
+   * @return the count
+   */
+  public long getCount()
+  {
+    return count;
+  }
+
+  /**
+   * Sum of values, overflowing silently like {@link java.util.stream.LongStream#sum()}
+   * @return the sum
+   */
+  public long getSum()
+  {
+    return sum;
+  }
+
+  /**
+   * Smallest value
+   * @return the value, or DB.NULL if there are none
+   */
+  public long getMin()
+  {
+    return count==0 ? DB.NULL : min;
+  }
+
+  /**
+   * Largest value
+   * @return the value, or DB.NULL if there are none
+   */
+  public long getMax()
+  {
+    return count==0 ? DB.NULL : max;
+  }
+
+  /**
+   * Average of values
+   * @return the average, or NaN if there are no values
+   */
+  public double getAverage()
+  {
+    return count==0 ? Double.NaN : (double)sum/count;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "count="+count+", sum="+sum+", min="+getMin()+", max="+getMax()+", average="+getAverage();
+  }
+}
@@ -19,6 +19,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 
+import com.stremebase.map.ArrayMap;
+import com.stremebase.map.JavaSerializer;
 import com.stremebase.map.SetMap;
 
 /**
@@ -39,11 +41,42 @@ public class Catalog implements AutoCloseable
   public static final String MAXCACHEDFREESLOTS = "MAXCACHEDFREESLOTS";
   public static final String MAXCACHEDSETSIZE = "MAXCACHEDSETSIZE";
   public static final String MAXCACHEDSETVALUEENTRIES = "MAXCACHEDSETVALUEENTRIES";
+  public static final String MAXCACHEDSETBYTES = "MAXCACHEDSETBYTES";
   public static final String DIRECTORY = "DIRECTORY";
   public static final String NODESIZE = "NODESIZE";
   public static final String PERSISTED = "PERSISTED";
   public static final String MAPTYPE = "MAPTYPE";
   public static final String SETTYPE = "SETTYPE";
+  /**
+   * Whether a SetMap stores its sets delta-encoded and bit-packed, see {@link com.stremebase.map.PackedSet}.
+   * Saves space and scan time for sets that are mostly appended to, costs a rewrite of the set on every removal or attribute change.
+   */
+  public static final String COMPRESSEDSET = "COMPRESSEDSET";
+  public static final String TOMBSTONEPERCENT = "TOMBSTONEPERCENT";
+  /**
+   * How many longs of a list or set are stored inline in the key node of a DynamicMap instead of a value file slot.
+   * Short lists are then read with the same page access as the key. Every node grows by this many longs,
+   * so this cannot be changed after the map has been created.
+   */
+  public static final String INLINEVALUES = "INLINEVALUES";
+  /**
+   * Whether an ObjectMap stores serialized objects packed 8 bytes per long (after a byte count)
+   * instead of one byte per long. Maps created before this property existed stay unpacked.
+   */
+  public static final String PACKEDBYTES = "PACKEDBYTES";
+  /**
+   * The {@link com.stremebase.map.ObjectSerializer} class of an ObjectMap, see also {@link com.stremebase.map.CompactSerializer}
+   */
+  public static final String SERIALIZER = "SERIALIZER";
+  /**
+   * How many deserialized objects an ObjectMap keeps cached for reads, 0 for no cache
+   */
+  public static final String MAXCACHEDOBJECTS = "MAXCACHEDOBJECTS";
+  /**
+   * Whether an ArrayMap stores its key files column by column: first the active flags of all keys, then each cell of all keys.
+   * Queries and aggregates on a single cell then read only that cell. Reading a whole array costs a page access per cell.
+   */
+  public static final String COLUMNAR = "COLUMNAR";
   public static final String INDEXTYPE = "INDEXTYPE";
 
   public final DB db;
@@ -141,6 +174,23 @@ public class Catalog implements AutoCloseable
     maps.put(mapName, map);
   }
 
+  /**
+   * Deletes a map with its data and properties, so that it can be defined again
+   * @param mapName the name of the map
+   */
+  public void dropMap(String mapName)
+  {
+    StremeMap map = getMap(mapName);
+    map.clear();
+    map.close();
+    maps.remove(mapName);
+    keyDirectories.remove(map);
+    valueDirectories.remove(map);
+    freeSlotDirectories.remove(map);
+    mapProperties.remove(map);
+    if (db.PERSISTED) db.fileManager.deleteDir(new File(getDir(mapName)));
+  }
+
   protected void loadMap(String mapName)
   {
     defineMap(mapName, null, null, false);
@@ -173,6 +223,27 @@ public class Catalog implements AutoCloseable
     return map;
   }
 
+  /**
+   * Statistics of a map's index, for estimating query selectivity
+   * @param mapName the map
+   * @return the statistics, or null if the map is not indexed (or the index is being built)
+   */
+  public IndexStatistics getIndexStatistics(String mapName)
+  {
+    return getMap(mapName).getIndexStatistics();
+  }
+
+  /**
+   * Statistics of an array map's cell index
+   * @param arrayMapName the map
+   * @param cell the index of the cell
+   * @return the statistics, or null if the cell is not indexed (or the index is being built)
+   */
+  public IndexStatistics getIndexStatistics(String arrayMapName, int cell)
+  {
+    return ((ArrayMap)getMap(arrayMapName)).getCellIndexStatistics(cell);
+  }
+
   /**
    * Gets property value for a map
    * @param property the property name
@@ -184,6 +255,17 @@ public class Catalog implements AutoCloseable
     return mapProperties.get(map).getOrDefault(property, systemProperties.get(property));
   }
 
+  /**
+   * Whether a property is set for the map itself, instead of falling back to the system default
+   * @param property the property name
+   * @param map the map
+   * @return true if set
+   */
+  public boolean hasProperty(String property, StremeMap map)
+  {
+    return mapProperties.get(map).containsKey(property);
+  }
+
   /**
    * Puts a property
    * @param property the property name
@@ -337,8 +419,16 @@ public class Catalog implements AutoCloseable
     systemProperties.putIfAbsent(MAXCACHEDFREESLOTS, 100000);
     systemProperties.putIfAbsent(MAXCACHEDSETSIZE, 10000);
     systemProperties.putIfAbsent(MAXCACHEDSETVALUEENTRIES, 1000);
+    systemProperties.putIfAbsent(MAXCACHEDSETBYTES, 16000000l);
     systemProperties.putIfAbsent(PERSISTED, true);
     systemProperties.putIfAbsent(SETTYPE, SetMap.SET);
+    systemProperties.putIfAbsent(COMPRESSEDSET, false);
+    systemProperties.putIfAbsent(TOMBSTONEPERCENT, 25);
+    systemProperties.putIfAbsent(INLINEVALUES, 0);
+    systemProperties.putIfAbsent(PACKEDBYTES, true);
+    systemProperties.putIfAbsent(SERIALIZER, JavaSerializer.class);
+    systemProperties.putIfAbsent(MAXCACHEDOBJECTS, 0);
+    systemProperties.putIfAbsent(COLUMNAR, false);
   }
 
   protected String getDir(String mapName)
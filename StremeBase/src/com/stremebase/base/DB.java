@@ -119,6 +119,11 @@ public class DB
    */
   public static final byte MANY_TO_MANY = 4;
 
+  /**
+   * Index type for array map cells: like ONE_TO_ONE, but enforced. Storing a value that is already associated with another key throws an exception.
+   */
+  public static final byte UNIQUE = 5;
+
 
   /**
    * Constructor, override this for custom configurations
@@ -234,6 +239,17 @@ public class DB
     catalog.getMap(mapName).addIndex(this, indexType);
   }
 
+  /**
+   * Index definition that does not block: existing keys are indexed in slices, one slice whenever the map is queried or flushed,
+   * while the map keeps serving. Queries scan until the index is ready.
+   * @param mapName name of the map
+   * @param indexType Relation type of the index (DB.ONE_TO_ONE etc.)
+   */
+  public void defineIndexOnline(String mapName, byte indexType)
+  {
+    catalog.getMap(mapName).addIndex(this, indexType, true);
+  }
+
   /**
    * Index definition for array map cell
    * @param arrayMapName name
@@ -245,6 +261,26 @@ public class DB
     ((ArrayMap)catalog.getMap(arrayMapName)).addIndextoCell(this, indexType, cellIndex);
   }
 
+  /**
+   * Index definition for array map cell, built in slices (see {@link #defineIndexOnline(String, byte)})
+   * @param arrayMapName name
+   * @param indexType Relation type of the index, DB.ONE_TO_ONE or DB.MANY_TO_ONE
+   * @param cellIndex index of the cell to index
+   */
+  public void defineCellIndexOnline(String arrayMapName, byte indexType, int cellIndex)
+  {
+    ((ArrayMap)catalog.getMap(arrayMapName)).addIndextoCell(this, indexType, cellIndex, true);
+  }
+
+  /**
+   * Attribute index definition for ATTRIBUTEDSET and MULTISET maps
+   * @param setMapName name
+   */
+  public void defineAttributeIndex(String setMapName)
+  {
+    ((SetMap)catalog.getMap(setMapName)).addAttributeIndex(this);
+  }
+
   /**
    * Get a map
    * @param mapName name
@@ -16,6 +16,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.LongBuffer;
 import java.util.Arrays;
 import java.util.List;
 import java.util.PrimitiveIterator;
@@ -23,13 +24,15 @@ import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.TreeMap;
 import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
 import java.util.stream.LongStream;
 import java.util.stream.StreamSupport;
 
 import com.stremebase.file.KeyFile;
-import com.stremebase.file.ValueFile;
+import com.stremebase.file.ZoneMap;
+import com.stremebase.file.DbFile;
 import com.stremebase.file.FileManager.ValueSlot;
-import com.stremebase.map.StackListMap;
+import com.stremebase.util.LongArrays;
 
 /**
  * Abstract base class for maps that grow their value storages as needed (lists, sets, etc.)
@@ -41,14 +44,23 @@ public abstract class DynamicMap extends StremeMap
   protected static final int pSlotSize = 2;
   protected static final int pSlotFileId = 3;
   protected static final int pSlotFilePosition = 4;
+  protected static final int pInline = 5;
+  /**
+   * pSlotFileId of a list that is stored inline in the key node, see {@link Catalog#INLINEVALUES}
+   */
+  protected static final long INLINE = DB.NULL;
   protected int initialCapacity;
+  protected int inlineCapacity;
 
   protected TreeMap<Long, List<ValueSlot>> freeValueSlots;
 
   @Override
   public void initialize(String mapName, Catalog catalog)
   {
-    catalog.setProperty(Catalog.NODESIZE, this, 5);
+    if (catalog.mapExistsOnDisk(mapName) && !catalog.hasProperty(Catalog.INLINEVALUES, this)) catalog.putProperty(Catalog.INLINEVALUES, this, 0);
+    inlineCapacity = (int) catalog.getProperty(Catalog.INLINEVALUES, this);
+    catalog.putProperty(Catalog.INLINEVALUES, this, inlineCapacity);
+    catalog.setProperty(Catalog.NODESIZE, this, pInline+inlineCapacity);
     super.initialize(mapName, catalog);
     initialCapacity = (int) catalog.getProperty(Catalog.INITIALCAPACITY, this);
   }
@@ -118,7 +130,9 @@ public abstract class DynamicMap extends StremeMap
     if (key==DB.NULL) return 0;
     KeyFile header = getData(key, false);
     if (header==null) return 0;
-    return (int) header.read(header.base(key)+pLength);
+    int base = header.base(key);
+    if (header.read(base)==0) return 0;
+    return (int) header.read(base+pLength);
   }
 
   @Override
@@ -127,7 +141,7 @@ public abstract class DynamicMap extends StremeMap
     if (key<0) throw new IllegalArgumentException("Negative keys are not supported ("+key+")");
     if (index<-1) throw new IndexOutOfBoundsException("Index out of bounds: "+index);
 
-    ValueFile slot;
+    DbFile slot;
     KeyFile header = getData(key, true);
     int base = header.base(key);
     if (header.read(base) == 0)
@@ -135,7 +149,8 @@ public abstract class DynamicMap extends StremeMap
       long[] newList = new long[index+1];
       newList[index] = value;
       putToNewSlot(key, newList);
-      if (isIndexed() && (!(this instanceof StackListMap && index==0))) if (value!=DB.NULL) indexer.index(key, value);
+      widenZone(header, key, 0, value);
+      if (isIndexed() && value!=DB.NULL) indexer.index(key, value);
       header.setActive(base, true);
       return;
     }
@@ -158,13 +173,13 @@ public abstract class DynamicMap extends StremeMap
     else
     {
       long[] newList = new long[length+1];
-      //TODO stream?
-      get(key, newList);
+      slot.readToArray(position, newList, length);
       newList[length] = value;
       ValueSlot fs = putToNewSlot(key, newList);
       slot = fs.valueFile;
       position = (int)fs.slotPosition;
     }
+    widenZone(header, key, 0, value);
 
     if (oldValue!=value && isIndexed())
     {
@@ -173,19 +188,93 @@ public abstract class DynamicMap extends StremeMap
     }
   }
 
+  /**
+   * Writes consecutive values starting at index in one batch: the slot is resized at most once,
+   * the values are written in bulk and the index is updated in sorted order
+   * @param key the key
+   * @param index the index of the first value, -1 or beyond the end appends
+   * @param values the values
+   */
   protected void put(long key, int index, long... values)
   {
-    for (int i = 0; i<values.length; i++) put(key, index+i, values[i]);
+    if (key<0) throw new IllegalArgumentException("Negative keys are not supported ("+key+")");
+    if (index<-1) throw new IndexOutOfBoundsException("Index out of bounds: "+index);
+    if (values.length==0) return;
+
+    KeyFile header = getData(key, true);
+    int base = header.base(key);
+    long[] oldList = null;
+    boolean created = header.read(base) == 0;
+
+    if (created)
+    {
+      if (index==-1) index = 0;
+      long[] newList = new long[index+values.length];
+      System.arraycopy(values, 0, newList, index, values.length);
+      putToNewSlot(key, newList);
+    }
+    else
+    {
+      int length = (int)header.read(base+pLength);
+      if (index == -1 || index>length) index = length;
+      int newLength = Math.max(length, index+values.length);
+      int overwritten = Math.max(0, Math.min(length, index+values.length)-index);
+
+      DbFile slot = slotFile(header, base);
+      int slotPosition = slotPosition(header, base);
+      if (isIndexed() && overwritten>0)
+      {
+        oldList = new long[length];
+        slot.readToArray(slotPosition, oldList, length);
+      }
+
+      if (header.read(base+pSlotSize)>=newLength)
+      {
+        slot.write(slotPosition+index, values);
+        header.write(base+pLength, newLength);
+      }
+      else
+      {
+        long[] newList = new long[newLength];
+        get(key, newList);
+        System.arraycopy(values, 0, newList, index, values.length);
+        putToNewSlot(key, newList);
+      }
+    }
+    for (long value: values) widenZone(header, key, 0, value);
+
+    if (!isIndexed()) return;
+    long[] added = distinctValues(values);
+    if (oldList!=null)
+    {
+      //a value is indexed once per key, so an overwritten value is unindexed only if it does not occur in the list anymore
+      long[] before = distinctValues(oldList);
+      long[] newList = Arrays.copyOf(oldList, Math.max(oldList.length, index+values.length));
+      System.arraycopy(values, 0, newList, index, values.length);
+      long[] after = distinctValues(newList);
+      for (long value: before) if (Arrays.binarySearch(after, value)<0) indexer.unIndex(key, value);
+      added = Arrays.stream(added).filter(value -> Arrays.binarySearch(before, value)<0).toArray();
+    }
+    for (long value: added) indexer.index(key, value);
   }
 
-  private int streamIndex;
+  /**
+   * The values of a list without DB.NULLs and duplicates
+   * @param list the list
+   * @return the values, ascending
+   */
+  protected static long[] distinctValues(long[] list)
+  {
+    long[] result = list.clone();
+    Arrays.sort(result);
+    int length = 0;
+    for (long value: result) if (value!=DB.NULL && (length==0 || result[length-1]!=value)) result[length++] = value;
+    return Arrays.copyOf(result, length);
+  }
 
   protected void put(long key, int index, LongStream values)
   {
-    streamIndex = 0;
-
-    //TODO batch job?
-    values.sequential().forEach(value ->  put(key, index+streamIndex++, value));
+    put(key, index, values.toArray());
   }
 
   @Override
@@ -193,10 +282,11 @@ public abstract class DynamicMap extends StremeMap
   {
     KeyFile header = getData(key, false);
     if (header==null) return;
-    if (isIndexed()) values(key).forEach(value -> indexer.unIndex(key, value));
-    header.setActive(header.base(key), false);
-    ValueFile slot = getSlot(key);
-    if (slot!=null) releaseSlot(key);
+    int base = header.base(key);
+    if (header.read(base)==0) return;
+    if (isIndexed()) forEachValue(key, value -> indexer.unIndex(key, value));
+    releaseSlot(key);
+    header.write(base+pLength, 0);
   }
 
   protected int indexOf(long key, int fromIndex, long value)
@@ -207,7 +297,7 @@ public abstract class DynamicMap extends StremeMap
     if (header==null) return -1;
     int base = header.base(key);
     if (header.read(base)==0) return -1;
-    ValueFile slot = getSlot(key);
+    DbFile slot = getSlot(key);
     long length = header.read(base+pLength);
     for (int i = fromIndex; i < length; i++) if (slot.read(position+i)==value) return i;
     return -1;
@@ -216,7 +306,7 @@ public abstract class DynamicMap extends StremeMap
   protected long get(long key, int index)
   {
     if (index<0) throw new IndexOutOfBoundsException("Index out of bounds: "+index);
-    ValueFile slot = getSlot(key);
+    DbFile slot = getSlot(key);
     if (slot==null) return DB.NULL;
     KeyFile header = getData(key, false);
     long length = header.read(header.base(key)+pLength);
@@ -230,10 +320,24 @@ public abstract class DynamicMap extends StremeMap
     if (header==null) throw new IndexOutOfBoundsException("Cannot get nonexistent list.");
     int base = header.base(key);
     if (header.read(base)==0) throw new IndexOutOfBoundsException("Cannot get nonexistent list.");
-    ValueFile file = fileManager.getValueFile(mapGetter, header.read(base+pSlotFileId));
     int length = (int)header.read(base+pLength);
     if (length>toArray.length) length = toArray.length;
-    file.readToArray((int)header.read(base+pSlotFilePosition), toArray, length);
+    slotFile(header, base).readToArray(slotPosition(header, base), toArray, length);
+  }
+
+  /**
+   * A read-only view of the list of a key, straight over its slot, so that nothing is copied.
+   * The view is valid until the list of the key is modified next.
+   * @param key the key
+   * @return the view, or null if the key has no list
+   */
+  protected LongBuffer view(long key)
+  {
+    KeyFile header = getData(key, false);
+    if (header==null) return null;
+    int base = header.base(key);
+    if (header.read(base)==0) return null;
+    return slotFile(header, base).longView(slotPosition(header, base), (int)header.read(base+pLength));
   }
 
   protected boolean listEquals(long key, long[] list)
@@ -244,6 +348,22 @@ public abstract class DynamicMap extends StremeMap
     return Arrays.equals(list, values);
   }
 
+  protected void forEachValue(long key, boolean skipNulls, LongConsumer action)
+  {
+    KeyFile header = getData(key, false);
+    if (header==null) return;
+    int base = header.base(key);
+    if (header.read(base)==0) return;
+    DbFile file = slotFile(header, base);
+    int position = slotPosition(header, base);
+    int end = position+(int)header.read(base+pLength);
+    for (; position<end; position++)
+    {
+      long value = file.read(position);
+      if (!skipNulls || value!=DB.NULL) action.accept(value);
+    }
+  }
+
   protected LongStream values(long key, boolean skipNulls)
   {
     return StreamSupport.longStream(spliterator(key, skipNulls), false);
@@ -268,11 +388,11 @@ public abstract class DynamicMap extends StremeMap
     KeyFile header = getData(key, true);
     int base = header.base(key);
 
-    if (!header.setActive(base, true)) fileManager.releaseSlot(mapGetter, header.read(base+pSlotFileId), header.read(base+pSlotSize), header.read(base+pSlotFilePosition));
+    if (!header.setActive(base, true)) releaseSlot(header, base);
 
     header.write(base+pLength, length);
     header.write(base+pSlotSize, slotInfo.slotSize);
-    header.write(base+pSlotFileId, slotInfo.valueFile.id);
+    header.write(base+pSlotFileId, slotInfo.valueFile instanceof KeyFile ? INLINE : slotInfo.valueFile.id);
     header.write(base+pSlotFilePosition, slotInfo.slotPosition);
   }
 
@@ -280,13 +400,165 @@ public abstract class DynamicMap extends StremeMap
   {
     KeyFile header = getData(key, false);
     int base = header.base(key);
-    if (header.setActive(base, false)) fileManager.releaseSlot(mapGetter, header.read(base+pSlotFileId), header.read(base+pSlotSize), header.read(base+pSlotFilePosition));
+    if (header.setActive(base, false)) releaseSlot(header, base);
+  }
+
+  protected void releaseSlot(KeyFile header, int base)
+  {
+    if (header.read(base+pSlotFileId)==INLINE) return;
+    fileManager.releaseSlot(mapGetter, header.read(base+pSlotFileId), header.read(base+pSlotSize), header.read(base+pSlotFilePosition));
+  }
+
+  /**
+   * The file that holds the list of a key: a value file, or the key file itself if the list is inline
+   * @param header the key file
+   * @param base base of the key node
+   * @return the file
+   */
+  protected DbFile slotFile(KeyFile header, int base)
+  {
+    long fileId = header.read(base+pSlotFileId);
+    if (fileId==INLINE) return header;
+    return fileManager.getValueFile(mapGetter, fileId);
+  }
+
+  /**
+   * Bulk scan for keys whose list has a value in range or, if sortedValues is given, one of the values.
+   * Inline lists are tested within the scanned block, other lists are read to a reused buffer.
+   * @param lowestValue lowest value, inclusive
+   * @param highestValue highest value, inclusive
+   * @param sortedValues sorted values, or null for a range scan
+   * @return the matching keys, ascending
+   */
+  protected LongStream scanLists(long lowestValue, long highestValue, long[] sortedValues)
+  {
+    if (sortedValues!=null)
+    {
+      if (sortedValues.length==0) return LongStream.empty();
+      lowestValue = sortedValues[0];
+      highestValue = sortedValues[sortedValues.length-1];
+    }
+    ListMatcher matcher = new ListMatcher(lowestValue, highestValue, sortedValues);
+    return scanZones(0, 1, lowestValue, highestValue, (file, fromKey, toKey, remaining, matches) -> scanNodes(file, fromKey, toKey, remaining, matcher, matches));
+  }
+
+  /**
+   * Aggregates, in parallel, the values in range of the lists of a range of keys
+   * @param lowestKey lowest key, inclusive
+   * @param highestKey highest key, inclusive
+   * @param lowestValue lowest value, inclusive
+   * @param highestValue highest value, inclusive
+   * @param predicate a predicate the values must also pass, or null
+   * @return the aggregate
+   */
+  protected Aggregate aggregateLists(long lowestKey, long highestKey, long lowestValue, long highestValue, LongPredicate predicate)
+  {
+    final long low = lowestValue==DB.NULL ? lowestValue+1 : lowestValue;
+    return aggregateZones(lowestKey, highestKey, 0, low, highestValue, result ->
+    {
+      ListMatcher reader = new ListMatcher(DB.NULL, DB.NULL, null);
+      NodeMatcher adder = (file, key, block, offset) ->
+      {
+        int length = reader.read(block, offset);
+        for (int i = reader.from; i<reader.from+length; i++)
+        {
+          long value = reader.list[i];
+          if (value>=low && value<=highestValue && (predicate==null || predicate.test(value))) result.add(value);
+        }
+        return false;
+      };
+      return (file, fromKey, toKey, remaining, matches) -> scanNodes(file, fromKey, toKey, remaining, adder, matches);
+    });
+  }
+
+  /**
+   * The zone map of a key file holds the smallest and largest value of the lists of each zone
+   */
+  @Override
+  protected ZoneMap buildZoneMap(KeyFile file)
+  {
+    ZoneMap zones = new ZoneMap(keysToAKeyFile, 1);
+    ListMatcher reader = new ListMatcher(DB.NULL, DB.NULL, null);
+    scanNodes(file, (f, key, block, offset) ->
+    {
+      int length = reader.read(block, offset);
+      for (int i = reader.from; i<reader.from+length; i++) zones.add(key-file.fromKey, 0, reader.list[i]);
+      return false;
+    });
+    return zones;
+  }
+
+  protected class ListMatcher implements NodeMatcher
+  {
+    protected final long lowestValue;
+    protected final long highestValue;
+    protected final long[] sortedValues;
+    protected long[] buffer = new long[16];
+    protected long[] list;
+    protected int from;
+
+    protected ListMatcher(long lowestValue, long highestValue, long[] sortedValues)
+    {
+      this.lowestValue = lowestValue;
+      this.highestValue = highestValue;
+      this.sortedValues = sortedValues;
+    }
+
+    /**
+     * Reads the list of a node, inline lists straight from the block.
+     * Value files are read through views, so that several key files can be read in parallel.
+     * @param block the nodes
+     * @param offset offset of the node in the block
+     * @return the length of the list, which is then at list[from]
+     */
+    protected int read(long[] block, int offset)
+    {
+      int length = (int)block[offset+pLength];
+      list = block;
+      from = offset+pInline;
+      if (block[offset+pSlotFileId]!=INLINE)
+      {
+        if (buffer.length<length) buffer = new long[Math.max(length, buffer.length*2)];
+        fileManager.getValueFile(mapGetter, block[offset+pSlotFileId]).longView(block[offset+pSlotFilePosition], length).get(buffer, 0, length);
+        list = buffer;
+        from = 0;
+      }
+      return length;
+    }
+
+    @Override
+    public boolean matches(KeyFile file, long key, long[] block, int offset)
+    {
+      int length = read(block, offset);
+      if (sortedValues==null) return LongArrays.anyInRange(list, from, from+length, lowestValue, highestValue);
+      return LongArrays.anyIn(list, from, from+length, sortedValues);
+    }
+  }
+
+  protected int slotPosition(KeyFile header, int base)
+  {
+    if (header.read(base+pSlotFileId)==INLINE) return base+pInline;
+    return (int)header.read(base+pSlotFilePosition);
+  }
+
+  /**
+   * Gets a slot for a list, inline in the key node if the list fits there
+   * @param key the key
+   * @param requiredSize size of the slot
+   * @return the slot
+   */
+  protected ValueSlot getFreeSlot(long key, long requiredSize)
+  {
+    if (requiredSize>inlineCapacity) return fileManager.getFreeSlot(mapGetter, requiredSize);
+    KeyFile header = getData(key, true);
+    return fileManager.getInlineSlot(header, header.base(key)+pInline, inlineCapacity);
   }
 
   protected ValueSlot putToNewSlot(long key, long[] values)
   {
     int slotSize = values.length<initialCapacity ? initialCapacity : values.length * 2;
-    final ValueSlot slot = fileManager.getFreeSlot(mapGetter, slotSize);
+    if (values.length<=inlineCapacity) slotSize = values.length;
+    final ValueSlot slot = getFreeSlot(key, slotSize);
     writeData(slot, values);
     createHeader(key, values.length, slot);
     return slot;
@@ -294,14 +566,14 @@ public abstract class DynamicMap extends StremeMap
 
   private int position;
 
-  protected ValueFile getSlot(long key)
+  protected DbFile getSlot(long key)
   {
     KeyFile header = getData(key, false);
     if (header==null) return null;
     int base = header.base(key);
     if (header.read(base)==0) return null;
-    position = (int)header.read(base+pSlotFilePosition);
-    return fileManager.getValueFile(mapGetter, header.read(base+pSlotFileId));
+    position = slotPosition(header, base);
+    return slotFile(header, base);
   }
 
   protected void writeData(ValueSlot slotInfo, long[] values)
@@ -314,7 +586,7 @@ public abstract class DynamicMap extends StremeMap
 
   protected class ListIterator implements PrimitiveIterator.OfLong
   {
-    final ValueFile slot;
+    final DbFile slot;
     int remaining;
     int pos;
     long current = DB.NULL;
@@ -0,0 +1,180 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+package com.stremebase.base;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Streaming heavy-hitters sketch (Space-Saving) that tracks the most frequent values with a fixed number of counters.
+ * <p>
+ * While there are at most as many distinct values as counters, counts are exact. After that a new value replaces
+ * the value with the smallest count and inherits its count, so counts may be overestimated by at most getError(value),
+ * but every value whose true count exceeds total/capacity is tracked.
+ * @author olli
+ */
+public class HeavyHitters
+{
+  protected final int capacity;
+  protected final long[] values;
+  protected final long[] counts;
+  protected final long[] errors;
+  protected final Map<Long, Integer> positions = new HashMap<>();
+  protected int size;
+
+  /**
+   * Creates the sketch
+   * @param capacity number of counters
+   */
+  public HeavyHitters(int capacity)
+  {
+    if (capacity<1) throw new IllegalArgumentException("Capacity must be positive ("+capacity+")");
+    this.capacity = capacity;
+    values = new long[capacity];
+    counts = new long[capacity];
+    errors = new long[capacity];
+  }
+
+  /**
+   * Number of counters
+   * @return the capacity
+   */
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+  /**
+   * Adds occurrences of a value. A negative amount removes occurrences, but only from values that are tracked.
+   * @param value the value
+   * @param amount the amount
+   */
+  public void add(long value, long amount)
+  {
+    if (amount==0) return;
+    Integer position = positions.get(value);
+    if (position!=null)
+    {
+      counts[position] = Math.max(0, counts[position]+amount);
+      if (amount>0) down(position); else up(position);
+      return;
+    }
+    if (amount<0) return;
+
+    if (size<capacity)
+    {
+      values[size] = value;
+      counts[size] = amount;
+      errors[size] = 0;
+      positions.put(value, size);
+      up(size++);
+      return;
+    }
+
+    positions.remove(values[0]);
+    values[0] = value;
+    errors[0] = counts[0];
+    counts[0] += amount;
+    positions.put(value, 0);
+    down(0);
+  }
+
+  /**
+   * Estimated count of a value
+   * @param value the value
+   * @return the count, 0 if the value is not tracked
+   */
+  public long getCount(long value)
+  {
+    Integer position = positions.get(value);
+    return position==null ? 0 : counts[position];
+  }
+
+  /**
+   * Upper bound of the overestimation of a value's count
+   * @param value the value
+   * @return the error
+   */
+  public long getError(long value)
+  {
+    Integer position = positions.get(value);
+    return position==null ? 0 : errors[position];
+  }
+
+  /**
+   * The most frequent values
+   * @param k how many
+   * @return the values, most frequent first
+   */
+  public long[] top(int k)
+  {
+    Integer[] order = new Integer[size];
+    for (int i=0; i<size; i++) order[i] = i;
+    Arrays.sort(order, (i1, i2) -> counts[i2]!=counts[i1] ? Long.compare(counts[i2], counts[i1]) : Long.compare(values[i1], values[i2]));
+    int count = 0;
+    while (count<Math.min(k, size) && counts[order[count]]>0) count++;
+    long[] result = new long[count];
+    for (int i=0; i<count; i++) result[i] = values[order[i]];
+    return result;
+  }
+
+  /**
+   * Forgets everything
+   */
+  public void clear()
+  {
+    positions.clear();
+    size = 0;
+  }
+
+  protected void up(int position)
+  {
+    while (position>0)
+    {
+      int parent = (position-1) >>> 1;
+      if (counts[parent]<=counts[position]) return;
+      swap(position, parent);
+      position = parent;
+    }
+  }
+
+  protected void down(int position)
+  {
+    while (true)
+    {
+      int smallest = position;
+      int left = position*2+1;
+      if (left<size && counts[left]<counts[smallest]) smallest = left;
+      if (left+1<size && counts[left+1]<counts[smallest]) smallest = left+1;
+      if (smallest==position) return;
+      swap(position, smallest);
+      position = smallest;
+    }
+  }
+
+  protected void swap(int i, int j)
+  {
+    long value = values[i];
+    long count = counts[i];
+    long error = errors[i];
+    values[i] = values[j];
+    counts[i] = counts[j];
+    errors[i] = errors[j];
+    values[j] = value;
+    counts[j] = count;
+    errors[j] = error;
+    positions.put(values[i], i);
+    positions.put(values[j], j);
+  }
+}
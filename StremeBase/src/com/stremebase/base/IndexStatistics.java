@@ -0,0 +1,223 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+package com.stremebase.base;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Lightweight statistics of the values in an index, for estimating the selectivity of queries.
+ * <p>
+ * Keeps the count of indexed values, the count of DB.NULLs, a HyperLogLog sketch of distinct values and
+ * a random sample of values from which an equi-depth histogram is derived.
+ * <p>
+ * The distinct count is an estimate that never decreases on removals, the histogram is approximate.
+ * @author olli
+ */
+public class IndexStatistics
+{
+  protected static final int P = 11;
+  protected static final int REGISTERS = 1 << P;
+  protected static final int SAMPLESIZE = 1024;
+
+  protected long count;
+  protected long nullCount;
+
+  protected final byte[] registers = new byte[REGISTERS];
+
+  protected final long[] sample = new long[SAMPLESIZE];
+  protected int sampleLength;
+  protected long seen;
+  protected long[] sorted;
+
+  /**
+   * A value was indexed
+   * @param value the value
+   */
+  public void add(long value)
+  {
+    if (value==DB.NULL)
+    {
+      nullCount++;
+      return;
+    }
+    count++;
+
+    long hash = hash(value);
+    int register = (int) (hash >>> (64-P));
+    byte rank = (byte) (Long.numberOfLeadingZeros((hash << P) | (1l << (P-1)))+1);
+    if (rank>registers[register]) registers[register] = rank;
+
+    seen++;
+    if (sampleLength<SAMPLESIZE) sample[sampleLength++] = value;
+    else
+    {
+      long r = ThreadLocalRandom.current().nextLong(seen);
+      if (r<SAMPLESIZE) sample[(int)r] = value;
+      else return;
+    }
+    sorted = null;
+  }
+
+  /**
+   * A value was unindexed
+   * @param value the value
+   */
+  public void remove(long value)
+  {
+    if (value==DB.NULL)
+    {
+      if (nullCount>0) nullCount--;
+      return;
+    }
+    if (count>0) count--;
+    if (seen>0) seen--;
+
+    for (int i=0; i<sampleLength; i++) if (sample[i]==value)
+    {
+      sample[i] = sample[--sampleLength];
+      sorted = null;
+      return;
+    }
+  }
+
+  /**
+   * Forgets everything
+   */
+  public void clear()
+  {
+    count = 0;
+    nullCount = 0;
+    seen = 0;
+    sampleLength = 0;
+    sorted = null;
+    Arrays.fill(registers, (byte)0);
+  }
+
+  /**
+   * Count of indexed (non-null) values
+   * @return the count
+   */
+  public long getCount()
+  {
+    return count;
+  }
+
+  /**
+   * Count of DB.NULLs offered to the index
+   * @return the count
+   */
+  public long getNullCount()
+  {
+    return nullCount;
+  }
+
+  /**
+   * HyperLogLog estimate of the number of distinct values
+   * @return the estimate, at most getCount()
+   */
+  public long getDistinctCount()
+  {
+    double sum = 0;
+    int zeros = 0;
+    for (byte r: registers)
+    {
+      sum += 1.0 / (1l << r);
+      if (r==0) zeros++;
+    }
+    double estimate = (0.7213 / (1 + 1.079 / REGISTERS)) * REGISTERS * REGISTERS / sum;
+    if (estimate <= 2.5 * REGISTERS && zeros > 0) estimate = REGISTERS * Math.log((double)REGISTERS / zeros);
+    return Math.min(count, Math.round(estimate));
+  }
+
+  /**
+   * Equi-depth histogram: bucket boundaries such that roughly the same amount of values fall between consecutive boundaries
+   * @param buckets number of buckets
+   * @return buckets+1 boundaries (lowest sampled value first, highest last), or an empty array if nothing is indexed
+   */
+  public long[] getHistogram(int buckets)
+  {
+    long[] s = sorted();
+    if (s.length==0 || buckets<1) return new long[0];
+    long[] result = new long[buckets+1];
+    for (int i=0; i<=buckets; i++) result[i] = s[(int) ((long)i * (s.length-1) / buckets)];
+    return result;
+  }
+
+  /**
+   * Estimated count of values within the bounds
+   * @param lowestValue lowest value, inclusive
+   * @param highestValue highest value, inclusive
+   * @return the estimate
+   */
+  public long estimateRangeCount(long lowestValue, long highestValue)
+  {
+    if (lowestValue>highestValue || count==0) return 0;
+    long[] s = sorted();
+    if (s.length==0) return 0;
+    int from = lowerBound(s, lowestValue);
+    int to = highestValue==Long.MAX_VALUE ? s.length : lowerBound(s, highestValue+1);
+    if (to==from) return Math.min(count, Math.max(1, count / Math.max(1, getDistinctCount()) / 2));
+    return Math.max(1, Math.round((double) (to-from) / s.length * count));
+  }
+
+  /**
+   * Estimated count of values that equal any of the given values
+   * @param values the values
+   * @return the estimate
+   */
+  public long estimateUnionCount(long... values)
+  {
+    if (count==0) return 0;
+    long perValue = Math.max(1, count / Math.max(1, getDistinctCount()));
+    return Math.min(count, perValue * values.length);
+  }
+
+  protected long[] sorted()
+  {
+    if (sorted==null)
+    {
+      sorted = Arrays.copyOf(sample, sampleLength);
+      Arrays.sort(sorted);
+    }
+    return sorted;
+  }
+
+  protected static int lowerBound(long[] array, long value)
+  {
+    int lo = 0;
+    int hi = array.length;
+    while (lo<hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      if (array[mid]<value) lo = mid+1; else hi = mid;
+    }
+    return lo;
+  }
+
+  protected static long hash(long value)
+  {
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdl;
+    value ^= value >>> 33;
+    value *= 0xc4ceb9fe1a85ec53l;
+    value ^= value >>> 33;
+    return value;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "count="+count+", nulls="+nullCount+", distinct~"+getDistinctCount()+", histogram="+Arrays.toString(getHistogram(4));
+  }
+}
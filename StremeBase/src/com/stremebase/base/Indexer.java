@@ -12,7 +12,11 @@
 
 package com.stremebase.base;
 
+import java.util.Arrays;
+import java.util.function.LongFunction;
 import java.util.stream.LongStream;
+
+import com.stremebase.map.ArrayMap;
 import com.stremebase.util.LongArrays;
 
 
@@ -27,20 +31,182 @@ public class Indexer
   protected final Relation posiRelation;
   protected Relation negaRelation;
 
+  /**
+   * How many keys an online build indexes per step
+   */
+  public static int BUILDSLICE = 10000;
+
+  protected boolean ready = true;
+  protected long[] pendingKeys;
+  protected int pendingPosition;
+  protected LongFunction<LongStream> pendingValues;
+
+  protected final StremeMap map;
+  protected final LongFunction<LongStream> valueSource;
+  protected IndexStatistics statistics;
+  protected final boolean unique;
+
   public Indexer(DB db, StremeMap map, byte type)
   {
     if (type==DB.ONE_TO_MANY) type = DB.MANY_TO_ONE;
     else if (type==DB.MANY_TO_ONE) type = DB.ONE_TO_MANY;
     posiRelation = new Relation(db, map.mapName+"_pIndex", map.persisted, type);
+    this.map = map;
+    valueSource = key -> map.indexedValues(key);
+    unique = false;
   }
 
   public Indexer(DB db, StremeMap map, byte type, int cell)
   {
+    unique = type==DB.UNIQUE;
+    if (type==DB.MANY_TO_ONE) type = DB.ONE_TO_MANY;
+    else if (type==DB.UNIQUE) type = DB.ONE_TO_ONE;
     posiRelation = new Relation(db, map.mapName+"_pIndex_cell"+cell, map.persisted, type);
+    this.map = map;
+    valueSource = key -> LongStream.of(((ArrayMap)map).get(key, cell));
+  }
+
+  /**
+   * Statistics of the indexed values. Gathered by scanning the map on first call, maintained incrementally after that.
+   * @return the statistics, or null while the index is being built
+   */
+  public IndexStatistics getStatistics()
+  {
+    if (!ready) return null;
+    if (statistics==null)
+    {
+      IndexStatistics s = new IndexStatistics();
+      map.keys().forEach(key -> valueSource.apply(key).forEach(value -> s.add(value)));
+      statistics = s;
+    }
+    return statistics;
+  }
+
+  /**
+   * Starts an online build. The given keys are backfilled in slices of BUILDSLICE keys on the caller's thread:
+   * a slice is indexed whenever the readiness of the index is asked (by queries) or the index is flushed.
+   * Until the build is done the index reports that it is not ready, so that the map falls back to scanning queries.
+   * <p>
+   * Writes to keys that are still waiting for the backfill are skipped, because the backfill reads the values that are current then.
+   * Other writes are indexed immediately.
+   * @param keys the keys that existed when the build started, ascending
+   * @param values the values to index for a key
+   */
+  public void build(long[] keys, LongFunction<LongStream> values)
+  {
+    ready = false;
+    statistics = null;
+    pendingKeys = keys;
+    pendingPosition = 0;
+    pendingValues = values;
+  }
+
+  /**
+   * Tells whether the index is up to date and can be used in queries. During an online build, first indexes the next slice of keys.
+   * @return false while an online build is running
+   */
+  public boolean isReady()
+  {
+    if (!ready) backfill(BUILDSLICE);
+    return ready;
+  }
+
+  /**
+   * Completes an online build
+   */
+  public void awaitReady()
+  {
+    if (!ready) backfill(Integer.MAX_VALUE);
+  }
+
+  protected void backfill(int count)
+  {
+    int to = (int)Math.min(pendingKeys.length, (long)pendingPosition+count);
+    while (pendingPosition<to)
+    {
+      long key = pendingKeys[pendingPosition++];
+      pendingValues.apply(key).forEach(value -> indexNow(key, value));
+    }
+    if (pendingPosition<pendingKeys.length) return;
+    endBuild();
+    posiRelation.flush();
+    if (negaRelation!=null) negaRelation.flush();
+  }
+
+  protected void endBuild()
+  {
+    pendingKeys = null;
+    pendingValues = null;
+    ready = true;
+  }
+
+  protected boolean isPending(long key)
+  {
+    return !ready && Arrays.binarySearch(pendingKeys, pendingPosition, pendingKeys.length, key)>=0;
+  }
+
+  /**
+   * Whether this is a DB.UNIQUE index
+   * @return true if is
+   */
+  public boolean isUnique()
+  {
+    return unique;
+  }
+
+  /**
+   * The key that holds the value in a unique index
+   * @param value the value
+   * @return the key or DB.NULL
+   */
+  public long getKey(long value)
+  {
+    if (!unique) throw new UnsupportedOperationException("Not an unique index");
+    if (value==DB.NULL) return DB.NULL;
+    awaitReady();
+    if (value>=0) return posiRelation.getValue(value);
+    if (negaRelation==null) return DB.NULL;
+    return negaRelation.getValue(-value);
+  }
+
+  /**
+   * Throws if a unique index already associates the value with some other key. Does nothing for other indices.
+   * @param key the key
+   * @param value the value
+   */
+  public void checkUnique(long key, long value)
+  {
+    if (!unique) return;
+    long owner = getKey(value);
+    if (owner!=DB.NULL && owner!=key) throw new IllegalArgumentException("Value "+value+" already belongs to key "+owner+" ("+posiRelation.relationName+")");
+  }
+
+  /**
+   * Lookup-or-insert for unique indices: indexes the value for the key unless some key already has it, in one probe
+   * @param key the key
+   * @param value the value
+   * @return the key that holds the value (the given key, if it was indexed now)
+   */
+  public synchronized long indexIfAbsent(long key, long value)
+  {
+    if (!unique) throw new UnsupportedOperationException("Not an unique index");
+    if (value==DB.NULL) return DB.NULL;
+    awaitReady();
+    long owner;
+    if (value>=0) owner = posiRelation.relateIfAbsent(value, key);
+    else
+    {
+      if (negaRelation==null) createNegaRelation();
+      owner = negaRelation.relateIfAbsent(-value, key);
+    }
+    if (owner!=DB.NULL) return owner;
+    if (statistics!=null) statistics.add(value);
+    return key;
   }
 
   public void flush()
   {
+    if (!isReady()) return;
     posiRelation.flush();
     if (negaRelation!=null) negaRelation.flush();
   }
@@ -80,8 +246,20 @@ public class Indexer
   }
 
   public void index(long key, long value)
+  {
+    if (value==DB.NULL)
+    {
+      if (statistics!=null) statistics.add(value);
+      return;
+    }
+    if (isPending(key)) return;
+    indexNow(key, value);
+  }
+
+  protected void indexNow(long key, long value)
   {
     if (value==DB.NULL) return;
+    if (statistics!=null) statistics.add(value);
 
     if (value>=0) posiRelation.relate(value, key);
     else
@@ -100,8 +278,13 @@ public class Indexer
 
   public void unIndex(long key, long value)
   {
-    if (value==DB.NULL) return;
-
+    if (value==DB.NULL)
+    {
+      if (statistics!=null) statistics.remove(value);
+      return;
+    }
+    if (isPending(key)) return;
+    if (statistics!=null) statistics.remove(value);
     if (value>=0) posiRelation.unRelate(value, key);
     else if (negaRelation!=null) negaRelation.unRelate(-value, key);
   }
@@ -109,7 +292,7 @@ public class Indexer
   public void removeValue(long value)
   {
     if (value==DB.NULL) return;
-
+    statistics = null;
     if (value>=0) posiRelation.removeArgument(value);
     else if (negaRelation!=null) negaRelation.removeArgument(-value);
   }
@@ -117,19 +300,22 @@ public class Indexer
   public void removeKey(long key)
   {
     if (key==DB.NULL) return;
-
+    statistics = null;
     posiRelation.removeValue(key);
     if (negaRelation!=null) negaRelation.removeValue(key);
   }
 
   public void clear()
   {
+    if (!ready) endBuild();
+    if (statistics!=null) statistics.clear();
     posiRelation.clear();
     if (negaRelation!=null) negaRelation.clear();
   }
 
   public void close()
   {
+    awaitReady();
     posiRelation.close();
     if (negaRelation!=null) negaRelation.close();
   }
@@ -75,4 +75,9 @@ public class MapGetter
   {
     return map.keysToAKeyFile;
   }
+
+  public boolean isColumnar()
+  {
+    return map.columnar;
+  }
 }
@@ -12,6 +12,7 @@
 
 package com.stremebase.base;
 
+import java.util.function.LongConsumer;
 import java.util.stream.LongStream;
 import java.util.stream.LongStream.Builder;
 
@@ -49,20 +50,22 @@ public class Relation
   {
     StremeMap posi;
 
-    if (db.catalog.mapExistsOnDisk(relationName))
-    {
-      posi = db.getMap(relationName);
-      return posi;
-    }
-
     byte setType;
 
     if ((type == DB.ONE_TO_ONE) || (type == DB.MANY_TO_ONE)) setType = 0;
     else  if (type == DB.ONE_TO_MANY || type == DB.MANY_TO_MANY) setType = SetMap.SET;
     else throw new IllegalArgumentException("Unrecognized index type: "+type);
 
+    if (db.catalog.mapExistsOnDisk(relationName) || db.catalog.maps.containsKey(relationName))
+    {
+      posi = db.getMap(relationName);
+      if ((posi instanceof SetMap) == (setType!=0)) return posi;
+      //MANY_TO_ONE cell indices used to be stored as to-one relations. The stale relation is dropped and the owner reindexes.
+      db.catalog.dropMap(relationName);
+    }
+
     if (setType==0) db.defineMap(relationName, ArrayMap.class, db.props().add(Catalog.PERSISTED, persisted).add(Catalog.NODESIZE, 2).build(), false);
-    else  db.defineMap(relationName, SetMap.class, db.props().add(Catalog.PERSISTED, persisted).add(Catalog.SETTYPE, setType).build(), false);
+    else  db.defineMap(relationName, SetMap.class, db.props().add(Catalog.PERSISTED, persisted).add(Catalog.SETTYPE, setType).add(Catalog.COMPRESSEDSET, true).build(), false);
 
     posi = db.getMap(relationName);
     //if (map!=null) db.catalog.registerIndex(map, type);
@@ -135,6 +138,28 @@ public class Relation
     else ((SetMap)relationMap).put(argument, value);
   }
 
+  /**
+   * Relates the argument to the value, unless the argument is already related to something (TO_ONE relations only)
+   * @return the value the argument was already related to, or DB.NULL if the relation was created
+   */
+  public long relateIfAbsent(long argument, long value)
+  {
+    if (argument<0 || value==DB.NULL) return DB.NULL;
+    if ((type!=DB.ONE_TO_ONE) && (type != DB.MANY_TO_ONE)) throw new UnsupportedOperationException("relateIfAbsent is only supported for TO_ONE relations");
+    return ((ArrayMap)relationMap).putIfAbsent(argument, 0, value);
+  }
+
+  /**
+   * The value the argument is related to (TO_ONE relations only)
+   * @return the value or DB.NULL
+   */
+  public long getValue(long argument)
+  {
+    if (argument<0) return DB.NULL;
+    if ((type!=DB.ONE_TO_ONE) && (type != DB.MANY_TO_ONE)) throw new UnsupportedOperationException("getValue is only supported for TO_ONE relations");
+    return ((ArrayMap)relationMap).get(argument, 0);
+  }
+
   public void unRelate(long argument, long value)
   {
     if (argument<0 || value==DB.NULL) return;
@@ -170,6 +195,43 @@ public class Relation
     return relationMap.getValueCount(argument);
   }
 
+  /**
+   * Count of arguments that have values. Note that this is a relatively slow operation.
+   * @return the count
+   */
+  public long getArgumentCount()
+  {
+    return relationMap.getCount();
+  }
+
+  /**
+   * Calls the action for the values of an argument, without streams
+   * @param argument the argument
+   * @param action the action
+   */
+  public void forEachValue(long argument, LongConsumer action)
+  {
+    if (argument<0) return;
+    if ((type==DB.ONE_TO_ONE) || (type == DB.MANY_TO_ONE))
+    {
+      long value = ((ArrayMap)relationMap).get(argument, 0);
+      if (value!=DB.NULL) action.accept(value);
+    }
+    else relationMap.forEachValue(argument, action);
+  }
+
+  /**
+   * Calls the action for every argument that has values, in ascending order. A sequential scan over the relation.
+   * @param lowestArgument lowest argument, inclusive
+   * @param highestArgument highest argument, inclusive
+   * @param action the action
+   */
+  public void forEachArgument(long lowestArgument, long highestArgument, LongConsumer action)
+  {
+    if (lowestArgument<0) lowestArgument = 0;
+    relationMap.forEachKey(lowestArgument, highestArgument, action);
+  }
+
   public static void main(String[] args)
   {
     Relation r = new Relation(new DB(), "r", false, DB.MANY_TO_MANY);
@@ -11,6 +11,7 @@
 
 package com.stremebase.base;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.OptionalLong;
@@ -18,6 +19,7 @@ import java.util.PrimitiveIterator;
 import java.util.Spliterators;
 import java.util.TreeMap;
 import java.util.Spliterator;
+import java.util.function.Function;
 import java.util.function.LongConsumer;
 import java.util.stream.LongStream;
 import java.util.stream.StreamSupport;
@@ -25,8 +27,10 @@ import java.util.stream.StreamSupport;
 import com.stremebase.file.FileManager;
 import com.stremebase.file.KeyFile;
 import com.stremebase.file.ValueFile;
+import com.stremebase.file.ZoneMap;
 import com.stremebase.file.FileManager.ValueSlot;
 import com.stremebase.map.ArrayMap;
+import com.stremebase.util.ExpandingArray;
 
 
 /**
@@ -37,6 +41,11 @@ import com.stremebase.map.ArrayMap;
  */
 public abstract class StremeMap
 {
+  /**
+   * How many longs bulk scans read at a time
+   */
+  public static final int SCANBLOCK = 8192;
+
   protected String mapName;
   protected int nodeSize;
   protected boolean persisted;
@@ -53,6 +62,8 @@ public abstract class StremeMap
 
   protected long keysToAKeyFile;
 
+  protected boolean columnar;
+
   protected FileManager fileManager;
 
   private boolean indexQueryIsSorted = true;
@@ -76,6 +87,12 @@ public abstract class StremeMap
     else if (this.getClass()==ArrayMap.class) keysToAKeyFile = (long) catalog.getProperty(Catalog.KEYSTOAARRAYKEYFILE, this);
     else keysToAKeyFile = (long) catalog.getProperty(Catalog.KEYSTOAKEYFILE, this);
 
+    if (this instanceof ArrayMap)
+    {
+      if (catalog.mapExistsOnDisk(mapName) && !catalog.hasProperty(Catalog.COLUMNAR, this)) catalog.putProperty(Catalog.COLUMNAR, this, false);
+      columnar = (boolean) catalog.getProperty(Catalog.COLUMNAR, this);
+      catalog.putProperty(Catalog.COLUMNAR, this, columnar);
+    }
 
 
     mapGetter = new MapGetter(this);
@@ -84,6 +101,17 @@ public abstract class StremeMap
   }
 
   protected void addIndex(DB db, byte indexType)
+  {
+    addIndex(db, indexType, false);
+  }
+
+  /**
+   * Adds an index
+   * @param db the database
+   * @param indexType the relation type of the index
+   * @param online if true, existing keys are indexed in slices while the map keeps serving (queries scan until the index is ready)
+   */
+  protected void addIndex(DB db, byte indexType, boolean online)
   {
     if (indexer!=null)
     {
@@ -91,7 +119,19 @@ public abstract class StremeMap
       return;
     }
     indexer = new Indexer(db, this, indexType);
-    if (!isEmpty() && (indexer.isEmpty())) reIndex();
+    if (isEmpty() || !indexer.isEmpty()) return;
+    if (online) indexer.build(keys().toArray(), key -> indexedValues(key));
+    else reIndex();
+  }
+
+  /**
+   * The values of a key as seen by an online index build
+   * @param key the key
+   * @return the values to index
+   */
+  protected LongStream indexedValues(long key)
+  {
+    return values(key);
   }
 
   protected void dropIndex()
@@ -190,6 +230,42 @@ public abstract class StremeMap
     return StreamSupport.longStream(spliterator(lowestKey, highestKey, false), false);
   }
 
+  /**
+   * Calls the action for all keys between the bounds, in ascending order. A tight loop over the key files, without streams.
+   * @param lowestKey lowest key, inclusive. Use {@link DB#MIN_VALUE} to avoid lower bound.
+   * @param highestKey highest key, inclusive. Use {@link DB#MAX_VALUE} to avoid upper bound.
+   * @param action the action
+   */
+  public void forEachKey(long lowestKey, long highestKey, LongConsumer action)
+  {
+    long fileId = lowestKey<0 ? DB.NULL : KeyFile.fileId(lowestKey, keysToAKeyFile)-1;
+    while (true)
+    {
+      KeyFile file = fileManager.getNextKeyFile(mapGetter, fileId);
+      if (file == null) return;
+      fileId = file.id;
+      if (file.fromKey>highestKey) return;
+      long remaining = file.size();
+      long to = Math.min(file.fromKey+keysToAKeyFile-1, highestKey);
+      for (long key = file.fromKey; key<=to && remaining>0; key++)
+      {
+        if (file.read(file.base(key))!=1) continue;
+        remaining--;
+        if (key>=lowestKey) action.accept(key);
+      }
+    }
+  }
+
+  /**
+   * Calls the action for the values associated with a key
+   * @param key the key
+   * @param action the action
+   */
+  public void forEachValue(long key, LongConsumer action)
+  {
+    values(key).forEach(action);
+  }
+
   /**
    *  Returns all keys as a parallel {@link LongStream}
    * @return parallel stream of keys
@@ -226,6 +302,25 @@ public abstract class StremeMap
     return (indexer!=null);
   }
 
+  /**
+   * Tells whether the index can be used in queries (false while it is being built online)
+   * @return true, if the map is indexed and the index is ready
+   */
+  public boolean isIndexReady()
+  {
+    return indexer!=null && indexer.isReady();
+  }
+
+  /**
+   * Statistics of the index, see {@link IndexStatistics}
+   * @return the statistics, or null if the map is not indexed or the index is being built
+   */
+  public IndexStatistics getIndexStatistics()
+  {
+    if (indexer==null) return null;
+    return indexer.getStatistics();
+  }
+
   /**
    *  Commits data about free spaces in files to disk. If the map is in-memory, does nothing.
    */
@@ -308,7 +403,7 @@ public abstract class StremeMap
    */
   public LongStream query(long lowestValue, long highestValue)
   {
-    if (!isIndexed()) return scanningQuery(lowestValue, highestValue);
+    if (!isIndexReady()) return scanningQuery(lowestValue, highestValue);
     if (indexQueryIsSorted) return indexer.getKeysForValuesInRange(lowestValue, highestValue).sorted();
     return indexer.getKeysForValuesInRange(lowestValue, highestValue);
   }
@@ -320,7 +415,7 @@ public abstract class StremeMap
    */
   public LongStream unionQuery(long... values)
   {
-    if (!isIndexed()) return scanningUnionQuery(values);
+    if (!isIndexReady()) return scanningUnionQuery(values);
     if (indexQueryIsSorted) return indexer.getKeysForValues(values).sorted();
     return indexer.getKeysForValues(values);
   }
@@ -364,6 +459,203 @@ public abstract class StremeMap
         java.util.Spliterator.DISTINCT | java.util.Spliterator.IMMUTABLE | java.util.Spliterator.NONNULL | java.util.Spliterator.ORDERED);
   }
 
+  /**
+   * Scans the key nodes of the map in bulk. Nodes are read SCANBLOCK longs at a time, and the matcher is called
+   * for every active node with the block and the offset of the node in it.
+   * The stream is lazy per key file: the matching keys of a file are collected when the stream reaches the file.
+   * @param matcher the matcher
+   * @return the matching keys, ascending
+   */
+  protected LongStream scanNodes(NodeMatcher matcher)
+  {
+    return new ArrayList<>(mapGetter.getKeyFiles().values()).stream().flatMapToLong(file -> LongStream.of(scanNodes(file, matcher)));
+  }
+
+  protected long[] scanNodes(KeyFile file, NodeMatcher matcher)
+  {
+    ExpandingArray matches = new ExpandingArray();
+    scanNodes(file, file.fromKey, file.fromKey+keysToAKeyFile, file.size(), matcher, matches);
+    return matches.toArray();
+  }
+
+  /**
+   * Scans a range of the key nodes of a key file in bulk
+   * @param file the key file
+   * @param fromKey first key, inclusive
+   * @param toKey last key, exclusive
+   * @param remaining active keys left in the file, the scan stops when none is left
+   * @param matcher the matcher
+   * @param matches receives the matching keys
+   * @return active keys left after the range
+   */
+  protected long scanNodes(KeyFile file, long fromKey, long toKey, long remaining, NodeMatcher matcher, ExpandingArray matches)
+  {
+    int nodesPerBlock = Math.max(1, SCANBLOCK/nodeSize);
+    long[] block = new long[(int)Math.min(nodesPerBlock, toKey-fromKey)*nodeSize];
+    for (long from = fromKey; from<toKey && remaining>0; from+=nodesPerBlock)
+    {
+      int nodes = (int)Math.min(nodesPerBlock, toKey-from);
+      file.readToArray(file.base(from), block, nodes*nodeSize);
+      for (int node=0, offset=0; node<nodes; node++, offset+=nodeSize)
+      {
+        if (block[offset]!=1) continue;
+        remaining--;
+        if (matcher.matches(file, from+node, block, offset)) matches.add(from+node);
+      }
+    }
+    return remaining;
+  }
+
+  /**
+   * Scans the key files zone by zone, skipping the zones where the zone map rules out values between the bounds.
+   * Without a zone map (see buildZoneMap), whole files are scanned.
+   * @param fromCell first cell of the zone map to consider, inclusive
+   * @param toCell last cell, exclusive
+   * @param lowestValue lowest value, inclusive
+   * @param highestValue highest value, inclusive
+   * @param scanner scans a range of keys of a file
+   * @return the matching keys, ascending
+   */
+  protected LongStream scanZones(int fromCell, int toCell, long lowestValue, long highestValue, RangeScanner scanner)
+  {
+    if (lowestValue==DB.NULL) lowestValue++;
+    if (highestValue<lowestValue) return LongStream.empty();
+    final long low = lowestValue;
+    return new ArrayList<>(mapGetter.getKeyFiles().values()).stream().flatMapToLong(file ->
+    {
+      ExpandingArray matches = new ExpandingArray();
+      scanZones(file, Long.MIN_VALUE, Long.MAX_VALUE, fromCell, toCell, low, highestValue, scanner, matches);
+      return LongStream.of(matches.toArray());
+    });
+  }
+
+  /**
+   * Scans a range of keys of a key file zone by zone
+   * @param file the key file
+   * @param lowestKey lowest key, inclusive
+   * @param highestKey highest key, inclusive
+   * @param fromCell first cell of the zone map to consider, inclusive
+   * @param toCell last cell, exclusive
+   * @param lowestValue lowest value, inclusive, not DB.NULL
+   * @param highestValue highest value, inclusive
+   * @param scanner scans a range of keys of the file
+   * @param matches receives the matching keys
+   */
+  protected void scanZones(KeyFile file, long lowestKey, long highestKey, int fromCell, int toCell, long lowestValue, long highestValue,
+    RangeScanner scanner, ExpandingArray matches)
+  {
+    long start = Math.max(lowestKey, file.fromKey);
+    long end = Math.min(highestKey, file.fromKey+keysToAKeyFile-1)+1;
+    if (start>=end) return;
+    ZoneMap zones = zoneMap(file);
+    if (zones==null)
+    {
+      scanner.scan(file, start, end, file.size(), matches);
+      return;
+    }
+    long remaining = file.size();
+    for (long zone = (start-file.fromKey)/ZoneMap.ZONE; remaining>0 && file.fromKey+zone*ZoneMap.ZONE<end; zone++)
+    {
+      if (!zones.mayContain((int)zone, fromCell, toCell, lowestValue, highestValue)) continue;
+      long from = Math.max(start, file.fromKey+zone*ZoneMap.ZONE);
+      remaining = scanner.scan(file, from, Math.min(file.fromKey+(zone+1)*ZoneMap.ZONE, end), remaining, matches);
+    }
+  }
+
+  /**
+   * Aggregates values of a range of keys in parallel, a key file per task, skipping the zones that cannot hold values in range
+   * @param lowestKey lowest key, inclusive
+   * @param highestKey highest key, inclusive
+   * @param cell the cell of the zone map
+   * @param lowestValue lowest value, inclusive
+   * @param highestValue highest value, inclusive
+   * @param scanners creates, for each task, a scanner that adds the values in range to the given aggregate
+   * @return the aggregate
+   */
+  protected Aggregate aggregateZones(long lowestKey, long highestKey, int cell, long lowestValue, long highestValue, Function<Aggregate, RangeScanner> scanners)
+  {
+    if (lowestValue==DB.NULL) lowestValue++;
+    if (highestValue<lowestValue || highestKey<lowestKey) return new Aggregate();
+    final long low = lowestValue;
+    return new ArrayList<>(mapGetter.getKeyFiles().subMap(KeyFile.fileId(lowestKey, keysToAKeyFile), true, KeyFile.fileId(highestKey, keysToAKeyFile), true).values())
+      .parallelStream().map(file ->
+      {
+        Aggregate result = new Aggregate();
+        scanZones(file, lowestKey, highestKey, cell, cell+1, low, highestValue, scanners.apply(result), null);
+        return result;
+      }).reduce(Aggregate::combine).orElseGet(Aggregate::new);
+  }
+
+  /**
+   * The zone map of a key file, built on first use
+   * @param file the key file
+   * @return the zone map, or null if the map does not keep zone maps
+   */
+  protected ZoneMap zoneMap(KeyFile file)
+  {
+    ZoneMap zones = file.getZoneMap();
+    if (zones!=null) return zones;
+    zones = buildZoneMap(file);
+    file.setZoneMap(zones);
+    return zones;
+  }
+
+  /**
+   * Builds the zone map of a key file from its contents. Maps that keep zone maps widen them on every write.
+   * @param file the key file
+   * @return the zone map, null by default
+   */
+  protected ZoneMap buildZoneMap(KeyFile file)
+  {
+    return null;
+  }
+
+  /**
+   * Widens the zone map of a key file, if it has one, to include a value
+   * @param file the key file
+   * @param key the key
+   * @param cell the cell
+   * @param value the value
+   */
+  protected void widenZone(KeyFile file, long key, int cell, long value)
+  {
+    ZoneMap zones = file.getZoneMap();
+    if (zones!=null) zones.add(key-file.fromKey, cell, value);
+  }
+
+  /**
+   * Scans a range of keys of a key file
+   */
+  @FunctionalInterface
+  protected interface RangeScanner
+  {
+    /**
+     * @param file the key file
+     * @param fromKey first key, inclusive
+     * @param toKey last key, exclusive
+     * @param remaining active keys left in the file
+     * @param matches receives the matching keys
+     * @return active keys left after the range
+     */
+    long scan(KeyFile file, long fromKey, long toKey, long remaining, ExpandingArray matches);
+  }
+
+  /**
+   * Tests a key node during a bulk scan
+   */
+  @FunctionalInterface
+  protected interface NodeMatcher
+  {
+    /**
+     * @param file the key file
+     * @param key the key
+     * @param block the nodes read from the file
+     * @param offset offset of the node in the block
+     * @return true if the key matches
+     */
+    boolean matches(KeyFile file, long key, long[] block, int offset);
+  }
+
   protected KeyFile getData(long key, boolean create)
   {
     KeyFile result = create ? fileManager.getKeyFile(mapGetter, KeyFile.fileId(key, keysToAKeyFile), nodeSize, keysToAKeyFile) : fileManager.getKeyFile(mapGetter, KeyFile.fileId(key, keysToAKeyFile), DB.NULL, DB.NULL);
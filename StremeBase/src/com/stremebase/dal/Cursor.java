@@ -20,6 +20,7 @@ import java.util.stream.LongStream;
 import com.stremebase.base.DB;
 import com.stremebase.util.ExpandingArray;
 import com.stremebase.util.LongArrays;
+import com.stremebase.util.LongLongConsumer;
 import com.stremebase.util.SortOrder;
 
 /**
@@ -419,4 +420,81 @@ public interface Cursor
       }
     }
   }
+
+  /**
+   * The result of a join: pairs of from-keys and to-keys, see {@link TableRelation#join(LongStream, LongStream)}.
+   * The cursor iterates the from-keys; the to-key of the same pair is at the same position.
+   * @author olli
+   *
+   */
+  public static class PairCursor extends BasicCursor
+  {
+    protected long[] toResult;
+
+    public PairCursor(long[] fromKeys, long[] toKeys)
+    {
+      super(fromKeys);
+      if (fromKeys.length!=toKeys.length) throw new IllegalArgumentException("Pairs need as many from-keys ("+fromKeys.length+") as to-keys ("+toKeys.length+")");
+      toResult = toKeys;
+    }
+
+    /**
+     * Gets the to-key at the current cursor position
+     * @return the to-key
+     */
+    public long getToKey()
+    {
+      return getToKey(index);
+    }
+
+    /**
+     * Gets the to-key at the given position (without moving cursor)
+     * @param position the position
+     * @return the to-key
+     */
+    public long getToKey(int position)
+    {
+      if (position < 0 || position >= toResult.length) return DB.NULL;
+      return toResult[position];
+    }
+
+    /**
+     * Sorts the pairs by their from-keys
+     */
+    @Override
+    public void sort(SortOrder sortOrder)
+    {
+      if (sortOrder == null) return;
+      long[] order = new long[result.length];
+      for (int i=0; i<order.length; i++) order[i] = i;
+      LongArrays.sort(order, (v, w) -> sortOrder.compare(result[(int)v], result[(int)w]));
+      long[] fromKeys = new long[result.length];
+      long[] toKeys = new long[result.length];
+      for (int i=0; i<order.length; i++)
+      {
+        fromKeys[i] = result[(int)order[i]];
+        toKeys[i] = toResult[(int)order[i]];
+      }
+      result = fromKeys;
+      toResult = toKeys;
+    }
+
+    /**
+     * The to-keys as a stream, in the same order as the from-keys of {@link #getResult()}
+     * @return the to-keys
+     */
+    public LongStream getToResult()
+    {
+      return Arrays.stream(toResult);
+    }
+
+    /**
+     * Calls the action for every pair, forwards
+     * @param action the action, receiving the from-key and the to-key
+     */
+    public void forEach(LongLongConsumer action)
+    {
+      for (int i=0; i<result.length; i++) action.accept(result[i], toResult[i]);
+    }
+  }
 }
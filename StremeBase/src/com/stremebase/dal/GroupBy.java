@@ -0,0 +1,220 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+
+package com.stremebase.dal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+import java.util.stream.LongStream;
+
+import com.stremebase.base.DB;
+import com.stremebase.field.TupleField;
+import com.stremebase.map.ArrayMap;
+import com.stremebase.map.ObjectMap;
+
+/**
+ * A group-by: keys are grouped by the values of one or more fields, and the values of other fields are aggregated per group.
+ * <p>
+ * A field with many values per key puts the key into a group for each of its values; a field with no value
+ * puts the key into the group of DB.NULL. DB.NULLs are not aggregated.
+ * <p>
+ * Keys are grouped in parallel, each thread into its own {@link Groups}, and the partial results are merged at the end.
+ * <pre>
+ * Groups sales = table.createGroupBy().by(region).by(item, 0).aggregate(item, 1).execute();
+ * </pre>
+ * @author olli
+ *
+ */
+@SuppressWarnings("rawtypes")
+public class GroupBy
+{
+  protected final Table table;
+  protected final List<Column> groupColumns = new ArrayList<>();
+  protected final List<Column> aggregateColumns = new ArrayList<>();
+  protected Query query;
+
+  /**
+   * Creates a group-by, see also {@link Table#createGroupBy()}
+   * @param table the table
+   */
+  public GroupBy(Table table)
+  {
+    this.table = table;
+  }
+
+  /**
+   * Groups by the values of a field
+   * @param field the field
+   * @return this group-by
+   */
+  public GroupBy by(Field field)
+  {
+    groupColumns.add(new Column(field, -1));
+    return this;
+  }
+
+  /**
+   * Groups by a tuple cell
+   * @param field the field
+   * @param cell the cell index
+   * @return this group-by
+   */
+  public GroupBy by(TupleField field, int cell)
+  {
+    groupColumns.add(new Column(field, cell));
+    return this;
+  }
+
+  /**
+   * Aggregates the values of a field
+   * @param field the field
+   * @return this group-by
+   */
+  public GroupBy aggregate(Field field)
+  {
+    aggregateColumns.add(new Column(field, -1));
+    return this;
+  }
+
+  /**
+   * Aggregates a tuple cell
+   * @param field the field
+   * @param cell the cell index
+   * @return this group-by
+   */
+  public GroupBy aggregate(TupleField field, int cell)
+  {
+    aggregateColumns.add(new Column(field, cell));
+    return this;
+  }
+
+  /**
+   * Groups only the keys that match a query. Sort order and limit of the query are ignored.
+   * @param query the query
+   * @return this group-by
+   */
+  public GroupBy where(Query query)
+  {
+    if (query.table!=table) throw new IllegalArgumentException("Query is not for table "+table.name);
+    this.query = query;
+    return this;
+  }
+
+  /**
+   * Groups and aggregates
+   * @return the groups
+   */
+  public Groups execute()
+  {
+    LongStream keys;
+    if (query==null) keys = table.primaryField.map.keys();
+    else
+    {
+      Query.Plan plan = query.plan();
+      keys = plan.stream().filter(plan.filters().stream().reduce(LongPredicate::and).orElse(t->true));
+    }
+    return keys.unordered().parallel().collect(Partial::new, Partial::add, Partial::merge).groups;
+  }
+
+  //---------------------------------------------------------------
+
+  protected static class Column
+  {
+    protected final Field field;
+    protected final int cell;
+
+    protected Column(Field field, int cell)
+    {
+      if (field.map instanceof ObjectMap) throw new UnsupportedOperationException(field.name+" cannot be grouped or aggregated.");
+      this.field = field;
+      this.cell = cell;
+    }
+
+    protected void forEachValue(long key, LongConsumer action)
+    {
+      if (cell>-1) action.accept(((ArrayMap)field.map).get(key, cell));
+      else field.map.forEachValue(key, action);
+    }
+  }
+
+  /**
+   * The groups of one thread, with room for the values of the key being grouped
+   */
+  protected class Partial
+  {
+    protected final Groups groups = new Groups(groupColumns.size(), aggregateColumns.size());
+    protected final long[][] values = new long[groupColumns.size()][4];
+    protected final int[] valueCounts = new int[groupColumns.size()];
+    protected final long[] group = new long[groupColumns.size()];
+    protected int[] groupsOfKey = new int[4];
+    protected int groupsOfKeyCount;
+
+    protected void add(long key)
+    {
+      for (int i=0; i<values.length; i++)
+      {
+        final int column = i;
+        valueCounts[column] = 0;
+        groupColumns.get(column).forEachValue(key, value ->
+        {
+          if (valueCounts[column]==values[column].length) values[column] = Arrays.copyOf(values[column], valueCounts[column]*2);
+          values[column][valueCounts[column]++] = value;
+        });
+        if (valueCounts[column]==0) values[column][valueCounts[column]++] = DB.NULL;
+      }
+      groupsOfKeyCount = 0;
+      addGroups(0);
+
+      for (int g=0; g<groupsOfKeyCount; g++)
+      {
+        final int groupOfKey = groupsOfKey[g];
+        groups.addKey(groupOfKey);
+        for (int a=0; a<aggregateColumns.size(); a++)
+        {
+          final int aggregate = a;
+          aggregateColumns.get(a).forEachValue(key, value ->
+          {
+            if (value!=DB.NULL) groups.addValue(groupOfKey, aggregate, value);
+          });
+        }
+      }
+    }
+
+    /**
+     * Finds the groups of every combination of the values of the grouping columns
+     */
+    protected void addGroups(int column)
+    {
+      if (column==values.length)
+      {
+        int groupOfKey = groups.group(group, 0);
+        for (int g=0; g<groupsOfKeyCount; g++) if (groupsOfKey[g]==groupOfKey) return;
+        if (groupsOfKeyCount==groupsOfKey.length) groupsOfKey = Arrays.copyOf(groupsOfKey, groupsOfKeyCount*2);
+        groupsOfKey[groupsOfKeyCount++] = groupOfKey;
+        return;
+      }
+      for (int i=0; i<valueCounts[column]; i++)
+      {
+        group[column] = values[column][i];
+        addGroups(column+1);
+      }
+    }
+
+    protected void merge(Partial other)
+    {
+      groups.merge(other.groups);
+    }
+  }
+}
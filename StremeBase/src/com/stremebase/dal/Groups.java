@@ -0,0 +1,219 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+
+package com.stremebase.dal;
+
+import java.util.Arrays;
+
+import com.stremebase.base.Aggregate;
+
+
+/**
+ * The result of a {@link GroupBy}: the groups, their key counts and the aggregates of each group.
+ * <p>
+ * Groups are numbered from 0 to size()-1 in the order they were found. A group is identified by its group values,
+ * one for each grouping column. Values are the low-level long representations, see {@link Value#asObject(long, Class)}.
+ * <p>
+ * Groups live in an open-addressing hash table of primitive arrays, so that grouping does not box.
+ * @author olli
+ */
+public class Groups
+{
+  protected final int width;
+  protected final int aggregates;
+  protected int size;
+
+  protected int[] slots = new int[16];
+  protected long[] groupValues;
+  protected long[] counts = new long[8];
+  protected long[] aggregateCounts;
+  protected long[] sums;
+  protected long[] mins;
+  protected long[] maxs;
+
+  /**
+   * Creates an empty result
+   * @param width count of grouping columns
+   * @param aggregates count of aggregated columns
+   */
+  public Groups(int width, int aggregates)
+  {
+    this.width = width;
+    this.aggregates = aggregates;
+    groupValues = new long[8*width];
+    aggregateCounts = new long[8*aggregates];
+    sums = new long[8*aggregates];
+    mins = new long[8*aggregates];
+    maxs = new long[8*aggregates];
+  }
+
+  /**
+   * Count of groups
+   * @return the count
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * A group value of a group
+   * @param group the group
+   * @param column the grouping column
+   * @return the value
+   */
+  public long getValue(int group, int column)
+  {
+    return groupValues[group*width+column];
+  }
+
+  /**
+   * The group values of a group
+   * @param group the group
+   * @return the values, one for each grouping column
+   */
+  public long[] getValues(int group)
+  {
+    return Arrays.copyOfRange(groupValues, group*width, group*width+width);
+  }
+
+  /**
+   * Count of keys in a group
+   * @param group the group
+   * @return the count
+   */
+  public long getCount(int group)
+  {
+    return counts[group];
+  }
+
+  /**
+   * The aggregate of an aggregated column in a group
+   * @param group the group
+   * @param aggregate the aggregated column
+   * @return the aggregate
+   */
+  public Aggregate getAggregate(int group, int aggregate)
+  {
+    int i = group*aggregates+aggregate;
+    return new Aggregate(aggregateCounts[i], sums[i], mins[i], maxs[i]);
+  }
+
+  /**
+   * Finds a group
+   * @param values the group values
+   * @return the group, or -1 if there is no such group
+   */
+  public int find(long... values)
+  {
+    if (values.length!=width) throw new IllegalArgumentException("Expected "+width+" group values, got "+values.length);
+    int mask = slots.length-1;
+    for (int slot = hash(values, 0) & mask; slots[slot]!=0; slot = (slot+1) & mask)
+      if (equals(slots[slot]-1, values, 0)) return slots[slot]-1;
+    return -1;
+  }
+
+  /**
+   * Finds or creates a group
+   * @param values array holding the group values
+   * @param from index of the first group value in the array
+   * @return the group
+   */
+  protected int group(long[] values, int from)
+  {
+    int mask = slots.length-1;
+    int slot = hash(values, from) & mask;
+    for (; slots[slot]!=0; slot = (slot+1) & mask)
+      if (equals(slots[slot]-1, values, from)) return slots[slot]-1;
+
+    if (size==counts.length) grow();
+    int group = size++;
+    System.arraycopy(values, from, groupValues, group*width, width);
+    Arrays.fill(mins, group*aggregates, group*aggregates+aggregates, Long.MAX_VALUE);
+    Arrays.fill(maxs, group*aggregates, group*aggregates+aggregates, Long.MIN_VALUE);
+    slots[slot] = group+1;
+    if (size*2>slots.length) rehash();
+    return group;
+  }
+
+  protected void addKey(int group)
+  {
+    counts[group]++;
+  }
+
+  protected void addValue(int group, int aggregate, long value)
+  {
+    int i = group*aggregates+aggregate;
+    aggregateCounts[i]++;
+    sums[i] += value;
+    if (value<mins[i]) mins[i] = value;
+    if (value>maxs[i]) maxs[i] = value;
+  }
+
+  /**
+   * Adds the groups of another, partial result to this one
+   * @param other the other result
+   */
+  protected void merge(Groups other)
+  {
+    for (int o=0; o<other.size; o++)
+    {
+      int group = group(other.groupValues, o*width);
+      counts[group] += other.counts[o];
+      for (int a=0; a<aggregates; a++)
+      {
+        int i = group*aggregates+a;
+        int j = o*aggregates+a;
+        aggregateCounts[i] += other.aggregateCounts[j];
+        sums[i] += other.sums[j];
+        if (other.mins[j]<mins[i]) mins[i] = other.mins[j];
+        if (other.maxs[j]>maxs[i]) maxs[i] = other.maxs[j];
+      }
+    }
+  }
+
+  protected boolean equals(int group, long[] values, int from)
+  {
+    for (int i=0; i<width; i++) if (groupValues[group*width+i]!=values[from+i]) return false;
+    return true;
+  }
+
+  protected int hash(long[] values, int from)
+  {
+    long hash = 0;
+    for (int i=from; i<from+width; i++) hash = (hash+values[i])*0x9E3779B97F4A7C15l;
+    return (int)(hash ^ (hash >>> 32));
+  }
+
+  protected void grow()
+  {
+    int capacity = counts.length*2;
+    counts = Arrays.copyOf(counts, capacity);
+    groupValues = Arrays.copyOf(groupValues, capacity*width);
+    aggregateCounts = Arrays.copyOf(aggregateCounts, capacity*aggregates);
+    sums = Arrays.copyOf(sums, capacity*aggregates);
+    mins = Arrays.copyOf(mins, capacity*aggregates);
+    maxs = Arrays.copyOf(maxs, capacity*aggregates);
+  }
+
+  protected void rehash()
+  {
+    slots = new int[slots.length*2];
+    int mask = slots.length-1;
+    for (int group=0; group<size; group++)
+    {
+      int slot = hash(groupValues, group*width) & mask;
+      while (slots[slot]!=0) slot = (slot+1) & mask;
+      slots[slot] = group+1;
+    }
+  }
+}
@@ -0,0 +1,390 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+package com.stremebase.dal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.LongPredicate;
+import java.util.stream.LongStream;
+
+import com.stremebase.base.DB;
+import com.stremebase.base.IndexStatistics;
+import com.stremebase.base.StremeMap;
+import com.stremebase.field.TextField;
+import com.stremebase.field.TupleField;
+import com.stremebase.map.ArrayMap;
+import com.stremebase.map.StackListMap;
+import com.stremebase.util.SortOrder;
+import com.stremebase.util.Streams;
+
+/**
+ * A declarative query: field conditions (AND-ed together), sort order and limit.
+ * <p>
+ * The query planner drives the query from the most selective index (according to index statistics), intersects other
+ * indices that are selective enough, and applies the remaining conditions as filters. Without usable indices the primary field is scanned.
+ * <p>
+ * Use {@link #explain()} to see the chosen plan.
+ * @author olli
+ *
+ */
+@SuppressWarnings("rawtypes")
+public class Query
+{
+  /**
+   * An index is intersected with the driving index only if its estimated result is at most this many times larger
+   */
+  public static int INTERSECTIONFACTOR = 4;
+
+  protected final Table table;
+  protected final List<Condition> conditions = new ArrayList<>();
+  protected SortOrder sortOrder;
+  protected int limit = Integer.MAX_VALUE;
+
+  /**
+   * Creates a query, see also {@link Table#createQuery()}
+   * @param table the table to query
+   */
+  public Query(Table table)
+  {
+    this.table = table;
+  }
+
+  /**
+   * Equality condition
+   * @param field the field, some value of which must equal
+   * @param value the value
+   * @return this query
+   */
+  public Query equal(Field field, Object value)
+  {
+    long l = asLong(value);
+    return add(new Condition(field, -1, l, l, null, null));
+  }
+
+  /**
+   * Equality condition for a tuple cell
+   * @param field the field
+   * @param cell the cell index
+   * @param value the value
+   * @return this query
+   */
+  public Query equal(TupleField field, int cell, Object value)
+  {
+    long l = asLong(value);
+    return add(new Condition(field, cell, l, l, null, null));
+  }
+
+  /**
+   * Range condition
+   * @param field the field, some value of which must be within bounds
+   * @param lowestValue lowest acceptable value, null for no lower bound
+   * @param highestValue highest acceptable value, null for no upper bound
+   * @return this query
+   */
+  public Query range(Field field, Object lowestValue, Object highestValue)
+  {
+    return add(new Condition(field, -1, lowestValue==null ? DB.MIN_VALUE : asLong(lowestValue), highestValue==null ? DB.MAX_VALUE : asLong(highestValue), null, null));
+  }
+
+  /**
+   * Range condition for a tuple cell
+   * @param field the field
+   * @param cell the cell index
+   * @param lowestValue lowest acceptable value, null for no lower bound
+   * @param highestValue highest acceptable value, null for no upper bound
+   * @return this query
+   */
+  public Query range(TupleField field, int cell, Object lowestValue, Object highestValue)
+  {
+    return add(new Condition(field, cell, lowestValue==null ? DB.MIN_VALUE : asLong(lowestValue), highestValue==null ? DB.MAX_VALUE : asLong(highestValue), null, null));
+  }
+
+  /**
+   * IN condition
+   * @param field the field, some value of which must equal one of the values
+   * @param values the acceptable values. Strings that have never been stored match nothing, and so does an empty IN.
+   * @return this query
+   */
+  public Query in(Field field, Object... values)
+  {
+    return add(new Condition(field, -1, DB.NULL, DB.NULL, asLongs(values), null));
+  }
+
+  /**
+   * IN condition for a tuple cell
+   * @param field the field
+   * @param cell the cell index
+   * @param values the acceptable values
+   * @return this query
+   */
+  public Query in(TupleField field, int cell, Object... values)
+  {
+    return add(new Condition(field, cell, DB.NULL, DB.NULL, asLongs(values), null));
+  }
+
+  /**
+   * Text match condition: the text must contain all the words
+   * @param field the text field
+   * @param words the words, possibly ending with the wildcard of the TextIndex ({@link TextField.TextIndex#WILDENDING}). Words shorter than two characters are ignored.
+   * @return this query
+   */
+  public Query textMatch(TextField field, String... words)
+  {
+    return add(new Condition(field, -1, DB.NULL, DB.NULL, null, words));
+  }
+
+  /**
+   * Sort order of the results
+   * @param sortOrder the order
+   * @return this query
+   */
+  public Query orderBy(SortOrder sortOrder)
+  {
+    this.sortOrder = sortOrder;
+    return this;
+  }
+
+  /**
+   * Maximum number of results
+   * @param limit the limit, -1 and Integer.MAX_VALUE denote unlimited
+   * @return this query
+   */
+  public Query limit(int limit)
+  {
+    this.limit = limit;
+    return this;
+  }
+
+  /**
+   * Plans and runs the query
+   * @return the result cursor
+   */
+  public Cursor execute()
+  {
+    Plan plan = plan();
+    return Cursor.getCursor(table.bigData, plan.stream(), plan.filters(), sortOrder, limit);
+  }
+
+  /**
+   * Describes how the query would be executed
+   * @return the plan as text
+   */
+  public String explain()
+  {
+    return plan().toString();
+  }
+
+  protected Query add(Condition condition)
+  {
+    conditions.add(condition);
+    return this;
+  }
+
+  protected Plan plan()
+  {
+    Plan plan = new Plan();
+
+    List<Condition> indexed = new ArrayList<>();
+    for (Condition c: conditions)
+    {
+      c.estimate = c.estimate();
+      if (c.estimate==Long.MAX_VALUE) plan.filtering.add(c);
+      else indexed.add(c);
+    }
+    indexed.sort((c1, c2) -> Long.compare(c1.estimate, c2.estimate));
+
+    for (Condition c: indexed)
+    {
+      if (plan.driving.isEmpty() || c.estimate <= plan.driving.get(0).estimate * INTERSECTIONFACTOR) plan.driving.add(c);
+      else plan.filtering.add(c);
+    }
+    return plan;
+  }
+
+  protected static long asLong(Object value)
+  {
+    if (value instanceof String) return Value.asLongIfExists((String)value);
+    return Value.asLong(value);
+  }
+
+  protected static long[] asLongs(Object... values)
+  {
+    long[] result = new long[values.length];
+    for (int i=0; i<values.length; i++) result[i] = asLong(values[i]);
+    return result;
+  }
+
+  //---------------------------------------------------------------
+
+  /**
+   * The chosen way to execute a query
+   */
+  protected class Plan
+  {
+    protected final List<Condition> driving = new ArrayList<>();
+    protected final List<Condition> filtering = new ArrayList<>();
+
+    protected LongStream stream()
+    {
+      if (driving.isEmpty()) return table.primaryField.map.keys();
+      if (driving.size()==1) return driving.get(0).source();
+      LongStream[] streams = new LongStream[driving.size()];
+      for (int i=0; i<streams.length; i++) streams[i] = driving.get(i).source();
+      return Streams.intersection(streams);
+    }
+
+    protected Collection<LongPredicate> filters()
+    {
+      List<LongPredicate> filters = new ArrayList<>(filtering.size());
+      for (Condition c: filtering) filters.add(c.filter());
+      return filters;
+    }
+
+    @Override
+    public String toString()
+    {
+      StringBuilder sb = new StringBuilder();
+      if (driving.isEmpty()) sb.append("SCAN ").append(table.name).append(" (").append(table.count()).append(" keys)\n");
+      for (int i=0; i<driving.size(); i++) sb.append(i==0 ? "INDEX " : "INTERSECT INDEX ").append(driving.get(i)).append('\n');
+      for (Condition c: filtering) sb.append("FILTER ").append(c).append('\n');
+      if (sortOrder!=null) sb.append("SORT\n");
+      if (limit>0 && limit<Integer.MAX_VALUE) sb.append("LIMIT ").append(limit).append('\n');
+      return sb.toString();
+    }
+  }
+
+  protected class Condition
+  {
+    protected final Field field;
+    protected final int cell;
+    protected final long lowestValue;
+    protected final long highestValue;
+    protected final long[] values;
+    protected final String[] words;
+    protected long estimate;
+
+    protected Condition(Field field, int cell, long lowestValue, long highestValue, long[] values, String[] words)
+    {
+      if (field.table!=table) throw new IllegalArgumentException(field.name+" does not belong to table "+table.name);
+      this.field = field;
+      this.cell = cell;
+      this.lowestValue = lowestValue;
+      this.highestValue = highestValue;
+      //strings that are not in the lexicon become DB.NULL, which no value equals
+      if (values!=null) values = LongStream.of(values).filter(value -> value!=DB.NULL).sorted().toArray();
+      this.values = values;
+      this.words = words;
+    }
+
+    /**
+     * Estimated count of matching keys when using an index, Long.MAX_VALUE if there is no usable index
+     */
+    protected long estimate()
+    {
+      if (words!=null)
+      {
+        TextField.TextIndex textIndex = ((TextField)field).getTextIndex();
+        if (textIndex==null) return Long.MAX_VALUE;
+        return textIndex.estimateCount(words.clone());
+      }
+
+      IndexStatistics statistics;
+      if (cell>-1)
+      {
+        ArrayMap arrayMap = (ArrayMap)field.map;
+        if (!arrayMap.isCellIndexReady(cell)) return Long.MAX_VALUE;
+        statistics = arrayMap.getCellIndexStatistics(cell);
+      }
+      else
+      {
+        if (!field.map.isIndexReady()) return Long.MAX_VALUE;
+        statistics = field.map.getIndexStatistics();
+      }
+      if (lowestValue==DB.NULL && (values==null || values.length==0)) return 0;
+      if (statistics==null) return table.count();
+      if (values!=null) return statistics.estimateUnionCount(values);
+      return statistics.estimateRangeCount(lowestValue, highestValue);
+    }
+
+    protected LongStream source()
+    {
+      LongStream result;
+      if (words!=null) return ((TextField)field).getTextIndex().search(table, words.clone()).mapToLong(sharedKey -> sharedKey.key).sorted();
+      if (lowestValue==DB.NULL && (values==null || values.length==0)) return LongStream.empty();
+      if (cell>-1)
+      {
+        ArrayMap arrayMap = (ArrayMap)field.map;
+        result = values!=null ? arrayMap.unionQueryByCell(cell, values.clone()) : arrayMap.queryByCell(cell, lowestValue, highestValue);
+      }
+      else result = values!=null ? field.map.unionQuery(values.clone()) : field.map.query(lowestValue, highestValue);
+      if (!field.map.isIndexQuerySorted()) result = result.sorted();
+      return result.distinct();
+    }
+
+    protected LongPredicate filter()
+    {
+      final StremeMap map = field.map;
+
+      if (words!=null)
+      {
+        //words are matched like TextIndex.search does, so that the result does not depend on the plan
+        final StackListMap stackListMap = ((TextField)field).stackListMap;
+        TextField.TextIndex textIndex = ((TextField)field).getTextIndex();
+        final char wildEnding = textIndex==null ? '*' : textIndex.WILDENDING;
+        final List<long[]> alternatives = new ArrayList<>(words.length);
+        for (String word: words)
+        {
+          if (word.length()<2) continue;
+          long[] wordValues;
+          if (word.charAt(word.length()-1)==wildEnding) wordValues = table.tableDb.lexicon.wordsWithPrefix(word.substring(0, word.length()-1)).sorted().toArray();
+          else wordValues = LongStream.of(Value.asLongIfExists(word)).filter(value -> value!=DB.NULL).toArray();
+          if (wordValues.length==0) return key -> false;
+          alternatives.add(wordValues);
+        }
+        if (alternatives.isEmpty()) return key -> false;
+        return key -> alternatives.stream().allMatch(wordValues -> wordValues.length==1 ? stackListMap.indexOf(key, 0, wordValues[0])>-1 :
+          stackListMap.values(key).anyMatch(word -> Arrays.binarySearch(wordValues, word)>=0));
+      }
+
+      if (lowestValue==DB.NULL && (values==null || values.length==0)) return key -> false;
+
+      if (cell>-1)
+      {
+        final ArrayMap arrayMap = (ArrayMap)map;
+        if (values!=null) return key -> Arrays.binarySearch(values, arrayMap.get(key, cell))>=0;
+        return key ->
+        {
+          long value = arrayMap.get(key, cell);
+          return value!=DB.NULL && value>=lowestValue && value<=highestValue;
+        };
+      }
+
+      if (values!=null) return key -> map.values(key).anyMatch(value -> Arrays.binarySearch(values, value)>=0);
+      return key -> map.values(key).anyMatch(value -> value!=DB.NULL && value>=lowestValue && value<=highestValue);
+    }
+
+    @Override
+    public String toString()
+    {
+      StringBuilder sb = new StringBuilder(field.name);
+      if (cell>-1) sb.append('[').append(cell).append(']');
+      if (words!=null) sb.append(" MATCH ").append(Arrays.toString(words));
+      else if (values!=null) sb.append(" IN ").append(Arrays.toString(values));
+      else if (lowestValue==highestValue) sb.append(" = ").append(lowestValue);
+      else sb.append(" BETWEEN ").append(lowestValue).append(" AND ").append(highestValue);
+      if (estimate!=Long.MAX_VALUE) sb.append(" (est. ").append(estimate).append(" keys)");
+      return sb.toString();
+    }
+  }
+}
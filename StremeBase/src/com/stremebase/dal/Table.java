@@ -150,6 +150,24 @@ public class Table
     return Cursor.getCursor(bigData, fromStream, filters, sortOrder, limit);
   }
 
+  /**
+   * Creates a declarative query that chooses indices by itself
+   * @return new query
+   */
+  public Query createQuery()
+  {
+    return new Query(this);
+  }
+
+  /**
+   * Creates a group-by over the keys of this table
+   * @return new group-by
+   */
+  public GroupBy createGroupBy()
+  {
+    return new GroupBy(this);
+  }
+
   /**
    * Number of keys in this table (= in primary field). Relatively slow operation, use sparingly.
    * @return the number
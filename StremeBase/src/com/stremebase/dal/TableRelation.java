@@ -11,10 +11,13 @@
 
 package com.stremebase.dal;
 
+import java.util.Arrays;
 import java.util.stream.LongStream;
 
 import com.stremebase.base.DB;
 import com.stremebase.base.Relation;
+import com.stremebase.util.LongHashSet;
+import com.stremebase.util.LongLongConsumer;
 
 /**
  * Relates keys from two tables. Also indexes the inverted direction if needed. Tables will ensure that removals are cascaded to here.
@@ -28,6 +31,12 @@ import com.stremebase.base.Relation;
  */
 public class TableRelation
 {
+  /**
+   * A join scans the whole relation instead of looking up the keys of the smaller input one by one,
+   * if the smaller input has at least this many keys per related from-key
+   */
+  public static double HASHJOINRATIO = 0.8;
+
   public boolean isModified;
 
   /**
@@ -162,6 +171,127 @@ public class TableRelation
     return invertedRelation.getAsLongArray(toTableKey);
   }
 
+  /**
+   * Joins keys of the from-table to keys of the to-table through this relation.
+   * <p>
+   * If the smaller input is selective compared to the relation, it drives an index-nested-loop join (see {@link #nestedLoopJoin(LongStream, LongStream)}),
+   * otherwise the relation is scanned in a hash join (see {@link #hashJoin(LongStream, LongStream)}).
+   * @param fromKeys the from-keys, or null for all of them
+   * @param toKeys the to-keys, or null for all of them
+   * @return the related pairs
+   */
+  public Cursor.PairCursor join(LongStream fromKeys, LongStream toKeys)
+  {
+    long[] from = distinctKeys(fromKeys);
+    long[] to = distinctKeys(toKeys);
+    boolean inverted = drivesInverted(from, to);
+    long[] driving = inverted ? to : from;
+    Relation drivenRelation = inverted ? invertedRelation.relation : relation;
+    if (driving==null || driving.length >= HASHJOINRATIO*drivenRelation.getArgumentCount()) return hashJoin(from, to);
+    return nestedLoopJoin(from, to, inverted);
+  }
+
+  /**
+   * Index-nested-loop join: looks up the relations of each key of the smaller input, in ascending key order, and keeps
+   * those whose other end is in the other input. Drives from the to-keys only if usingInvertedRelations.
+   * @param fromKeys the from-keys, or null for all of them
+   * @param toKeys the to-keys, or null for all of them
+   * @return the related pairs, in ascending order of driving keys
+   */
+  public Cursor.PairCursor nestedLoopJoin(LongStream fromKeys, LongStream toKeys)
+  {
+    long[] from = distinctKeys(fromKeys);
+    long[] to = distinctKeys(toKeys);
+    return nestedLoopJoin(from, to, drivesInverted(from, to));
+  }
+
+  /**
+   * Hash join: hashes the inputs and scans the relation once in key order, probing each from-key and the to-keys related to it.
+   * Faster than looking keys up one by one when inputs are unselective, and the only way to drive from the to-keys without inverted relations.
+   * @param fromKeys the from-keys, or null for all of them
+   * @param toKeys the to-keys, or null for all of them
+   * @return the related pairs, in ascending order of from-keys
+   */
+  public Cursor.PairCursor hashJoin(LongStream fromKeys, LongStream toKeys)
+  {
+    return hashJoin(distinctKeys(fromKeys), distinctKeys(toKeys));
+  }
+
+  protected Cursor.PairCursor nestedLoopJoin(long[] from, long[] to, boolean inverted)
+  {
+    Pairs pairs = new Pairs();
+    if (!inverted)
+    {
+      if (from==null) throw new IllegalArgumentException("Index-nested-loop join needs from-keys, or to-keys with inverted relations");
+      LongHashSet probe = to==null ? null : new LongHashSet(to);
+      for (long fromKey: from) relation.forEachValue(fromKey, toKey -> {if (probe==null || probe.contains(toKey)) pairs.accept(fromKey, toKey);});
+    }
+    else
+    {
+      LongHashSet probe = from==null ? null : new LongHashSet(from);
+      for (long toKey: to) invertedRelation.relation.forEachValue(toKey, fromKey -> {if (probe==null || probe.contains(fromKey)) pairs.accept(fromKey, toKey);});
+    }
+    return pairs.toCursor();
+  }
+
+  protected Cursor.PairCursor hashJoin(long[] from, long[] to)
+  {
+    Pairs pairs = new Pairs();
+    if ((from!=null && from.length==0) || (to!=null && to.length==0)) return pairs.toCursor();
+    LongHashSet fromSet = from==null ? null : new LongHashSet(from);
+    LongHashSet toSet = to==null ? null : new LongHashSet(to);
+    long lowestKey = from==null ? 0 : from[0];
+    long highestKey = from==null ? Long.MAX_VALUE : from[from.length-1];
+    relation.forEachArgument(lowestKey, highestKey, fromKey ->
+    {
+      if (fromSet==null || fromSet.contains(fromKey)) relation.forEachValue(fromKey, toKey -> {if (toSet==null || toSet.contains(toKey)) pairs.accept(fromKey, toKey);});
+    });
+    return pairs.toCursor();
+  }
+
+  protected boolean drivesInverted(long[] from, long[] to)
+  {
+    if (to==null || invertedRelation==null) return false;
+    return from==null || to.length<from.length;
+  }
+
+  protected static long[] distinctKeys(LongStream keys)
+  {
+    if (keys==null) return null;
+    long[] array = keys.filter(key -> key>=0).toArray();
+    Arrays.sort(array);
+    int length = 0;
+    for (int i=0; i<array.length; i++) if (length==0 || array[i]!=array[length-1]) array[length++] = array[i];
+    return length==array.length ? array : Arrays.copyOf(array, length);
+  }
+
+  /**
+   * Collects join results
+   */
+  protected static class Pairs implements LongLongConsumer
+  {
+    protected long[] fromKeys = new long[16];
+    protected long[] toKeys = new long[16];
+    protected int size;
+
+    @Override
+    public void accept(long fromKey, long toKey)
+    {
+      if (size==fromKeys.length)
+      {
+        fromKeys = Arrays.copyOf(fromKeys, size*2);
+        toKeys = Arrays.copyOf(toKeys, size*2);
+      }
+      fromKeys[size] = fromKey;
+      toKeys[size++] = toKey;
+    }
+
+    public Cursor.PairCursor toCursor()
+    {
+      return new Cursor.PairCursor(Arrays.copyOf(fromKeys, size), Arrays.copyOf(toKeys, size));
+    }
+  }
+
   /**
    * Creates new relations  
    * @param fromTableKey from key
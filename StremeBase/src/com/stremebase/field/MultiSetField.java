@@ -103,6 +103,29 @@ public class MultiSetField<T> extends Field<T>
     return setMap.entries(key);
   }
 
+  /**
+   * The most frequent values of the key
+   * @param key the key
+   * @param k how many
+   * @return the values and their counts, most frequent first
+   */
+  @SuppressWarnings("unchecked")
+  public Stream<MultiSetEntry<T>> topK(long key, int k)
+  {
+    return setMap.topK(key, k).map(e -> new MultiSetEntry<T>(e.key, (T) Value.asObject(e.value, valueClass), e.attribute));
+  }
+
+  /**
+   * The most frequent values over all keys, see {@link SetMap#topKValues(int)}
+   * @param k how many
+   * @return the values and their (estimated) total counts, most frequent first. Keys are DB.NULL.
+   */
+  @SuppressWarnings("unchecked")
+  public Stream<MultiSetEntry<T>> topKValues(int k)
+  {
+    return setMap.topKValues(k).map(e -> new MultiSetEntry<T>(e.key, (T) Value.asObject(e.value, valueClass), e.attribute));
+  }
+
   protected void add(long key, long value, int count)
   {
     setMap.put(key, value, count);
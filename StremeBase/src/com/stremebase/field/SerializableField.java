@@ -14,9 +14,12 @@ package com.stremebase.field;
 
 import java.io.Serializable;
 
+import com.stremebase.base.Catalog;
 import com.stremebase.dal.Field;
 import com.stremebase.dal.Table;
+import com.stremebase.map.CompactSerializer;
 import com.stremebase.map.ObjectMap;
+import com.stremebase.map.ObjectSerializer;
 
 
 /**
@@ -43,6 +46,21 @@ public class SerializableField<T extends Serializable> extends Field<T>
     map = table.tableDb.getMap(table.name+"_"+name);
   }
 
+  /**
+   * Defines new serializable field with a custom serializer.
+   * @param table the table
+   * @param name the name
+   * @param valueClass the Class of the value
+   * @param serializer the Class of the serializer, for example {@link CompactSerializer}
+   */
+  public SerializableField(Table table, String name, Class<? extends Serializable> valueClass, Class<? extends ObjectSerializer> serializer)
+  {
+    super(table, name);
+    this.valueClass = valueClass;
+    table.tableDb.defineMap(table.name+"_"+name, ObjectMap.class, table.tableDb.props().add(Catalog.SERIALIZER, serializer).build(), false);
+    map = table.tableDb.getMap(table.name+"_"+name);
+  }
+
   /**
    * gets the low level representation of the object
    * @param key the key
@@ -53,6 +71,16 @@ public class SerializableField<T extends Serializable> extends Field<T>
     return ((ObjectMap)map).getAsBytes(key);
   }
 
+  /**
+   * gets the serialized object
+   * @param key the key
+   * @return the bytes
+   */
+  public byte[] getBytes(long key)
+  {
+    return ((ObjectMap)map).getBytes(key);
+  }
+
   /**
    * Sets the value as long array of bytes
    * @param key the key
@@ -13,6 +13,7 @@ package com.stremebase.field;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
+import com.stremebase.base.Aggregate;
 import com.stremebase.dal.Field;
 import com.stremebase.dal.Table;
 import com.stremebase.dal.Value;
@@ -55,6 +56,15 @@ public class StackField<T> extends Field<T>
     return stackListMap.values(key);
   }
 
+  /**
+   * Aggregates the low-level representations of the values of all keys, to be used in reports
+   * @return the aggregate
+   */
+  public Aggregate aggregate()
+  {
+    return stackListMap.aggregate();
+  }
+
   /**
    * Gets the values as a stream skipping nulls
    * @param key the key
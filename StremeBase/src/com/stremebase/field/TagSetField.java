@@ -71,6 +71,14 @@ public class TagSetField<T, TT> extends Field<T>
     setMap = (SetMap)map;
   }
 
+  /**
+   * Adds an index from tags to keys, so that {@link SetMap#attributeQuery(long, long)} and {@link SetMap#attributeUnionQuery(long...)} need not scan
+   */
+  public void addTagIndex()
+  {
+    table.tableDb.defineAttributeIndex(table.name+"_"+name);
+  }
+
   /**
    * Gets the values and the tags associated with a key as a stream
    * @param key the key
@@ -10,6 +10,8 @@
  */
 package com.stremebase.field;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
@@ -24,6 +26,7 @@ import com.stremebase.dal.Value;
 import com.stremebase.dal.KeySpace.SharedKey;
 import com.stremebase.map.SetMap;
 import com.stremebase.map.StackListMap;
+import com.stremebase.util.SkippableIterator;
 import com.stremebase.util.Streams;
 
 /**
@@ -158,18 +161,16 @@ public class TextField extends Field
       return;
     }
 
-    int index = 0;
-    if (append) index = (int) stackListMap.getValueCount(key);
-
     String[] words = text.split(wordSplitter);
     if (maxWordLength>0 && maxWordLength<Integer.MAX_VALUE) for (int i=0; i<words.length; i++) if (words[i].length()>maxWordLength) words[i] = words[i].substring(0, maxWordLength);
+    long[] wordValues = new long[words.length];
     for (int i=0; i<words.length; i++)
     {
-      long word = Value.to.data(words[i]);
-      stackListMap.put(key, index+i, word);
-      if (textIndex!=null) textIndex.add(word, table, key);
+      wordValues[i] = Value.to.data(words[i]);
+      if (textIndex!=null) textIndex.add(wordValues[i], table, key);
     }
-    if (!append) stackListMap.shrinkValueSize(key, words.length);
+    if (append) stackListMap.push(key, wordValues);
+    else stackListMap.set(key, wordValues);
 
     super.setModified(true);
   }
@@ -181,6 +182,15 @@ public class TextField extends Field
     super.setModified(modified);
   }
 
+  /**
+   * The TextIndex of this field
+   * @return the index, or null if the field is not indexed
+   */
+  public TextIndex getTextIndex()
+  {
+    return textIndex;
+  }
+
   /**
    * TextField cannot be indexed (use {@link TextIndex}).
    */
@@ -216,7 +226,7 @@ public class TextField extends Field
      */
     public TextIndex(DB db, String name)
     {
-      db.defineMap(name, SetMap.class);
+      db.defineMap(name, SetMap.class, db.props().add(Catalog.COMPRESSEDSET, true).build(), false);
       setMap = db.getMap(name);
       lexicon = db.lexicon;
       this.to = db.to;
@@ -268,7 +278,7 @@ public class TextField extends Field
      */
     public Stream<SharedKey> search(String... words)
     {
-      LongStream[] streams = new LongStream[words.length];
+      List<SkippableIterator> iterators = new ArrayList<>(words.length);
       for (int i=0; i<words.length; i++)
       {
         final int l = words[i].length();
@@ -276,11 +286,34 @@ public class TextField extends Field
         if (words[i].charAt(l-1) == WILDENDING)
         {
           words[i] = words[i].substring(0, l-1);
-          streams[i] = Streams.union(lexicon.wordsWithPrefix(words[i]).mapToObj(word -> setMap.values(word)).toArray(LongStream[]::new));
+          iterators.add(Streams.iterator(Streams.union(lexicon.wordsWithPrefix(words[i]).mapToObj(word -> setMap.values(word)).toArray(LongStream[]::new)).distinct()));
+        }
+        else
+        {
+          long word = to.dataIfExists(words[i]);
+          if (word==DB.NULL) return Stream.empty();
+          iterators.add(setMap.valueIterator(word));
         }
-        else streams[i] = setMap.values(to.data(words[i]));
       }
-      return Streams.intersection(streams).distinct().mapToObj(globalKey->new SharedKey(globalKey));
+      return Streams.intersection(iterators.toArray(new SkippableIterator[iterators.size()])).mapToObj(globalKey->new SharedKey(globalKey));
+    }
+
+    /**
+     * Estimates the number of documents that match an AND-query, without running it
+     * @param words the search words, words ending with a wildcard are not considered
+     * @return the document count of the rarest word, or Long.MAX_VALUE if no word could be considered
+     */
+    public long estimateCount(String... words)
+    {
+      long result = Long.MAX_VALUE;
+      for (String word: words)
+      {
+        if (word.length()<2 || word.charAt(word.length()-1) == WILDENDING) continue;
+        long data = to.dataIfExists(word);
+        if (data==DB.NULL) return 0;
+        result = Math.min(result, setMap.getValueCount(data));
+      }
+      return result;
     }
 
     /**
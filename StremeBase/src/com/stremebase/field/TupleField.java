@@ -11,11 +11,13 @@
 
 package com.stremebase.field;
 
+import java.nio.LongBuffer;
 import java.util.BitSet;
 import java.util.Optional;
 import java.util.OptionalLong;
 import java.util.stream.LongStream;
 
+import com.stremebase.base.Aggregate;
 import com.stremebase.base.DB;
 import com.stremebase.dal.Field;
 import com.stremebase.dal.Table;
@@ -106,6 +108,27 @@ public class TupleField<T> extends Field<T>
     return arrayMap.get(key);
   }
 
+  /**
+   * Gets the low-level representations of all values as a read-only view, without copying them.
+   * The view is valid until the values of the key are set next.
+   * @param key the key
+   * @return the view of values, or null
+   */
+  public LongBuffer getView(long key)
+  {
+    return arrayMap.getView(key);
+  }
+
+  /**
+   * Aggregates the low-level representations of the values at an index over all keys, to be used in reports
+   * @param index the index
+   * @return the aggregate
+   */
+  public Aggregate aggregate(int index)
+  {
+    return arrayMap.aggregateCell(index);
+  }
+
   protected void set(long key, int index, long... values)
   {
     if (index+values.length>arrayMap.getValueCount(-1)) throw new IllegalArgumentException("Values from index don't fit into array");
@@ -128,6 +151,8 @@ public class TupleField<T> extends Field<T>
 
   /**
    * Sets the value if it is not yet set.
+   * <p>
+   * With a DB.UNIQUE index on the cell, lookup and insert are a single index probe; otherwise the cell is queried first.
    * @param key the key
    * @param index the index
    * @param value the value
@@ -137,6 +162,12 @@ public class TupleField<T> extends Field<T>
   {
     if (value==null) return DB.NULL;
     long lvalue = Value.asLong(value);
+    if (arrayMap.isCellIndexUnique(index))
+    {
+      long owner = arrayMap.putUnique(key, index, lvalue);
+      if (owner==key) setModified(true);
+      return owner;
+    }
     OptionalLong existing = arrayMap.queryByCell(index, lvalue, lvalue).findAny();
     if (existing.isPresent()) return existing.getAsLong();
     arrayMap.put(key, index, lvalue);
@@ -146,6 +177,8 @@ public class TupleField<T> extends Field<T>
 
   /**
    * Generates new key and sets the value, but only if the value is not associated with any existing key
+   * <p>
+   * For dictionary-style deduplication, define a DB.UNIQUE index to the cell: lookup and insert then take a single index probe.
    * @param index the index
    * @param value the value
    * @return the key that is associated with the value so that existing key is returned as negative value and created key as positive value
@@ -157,6 +190,15 @@ public class TupleField<T> extends Field<T>
     long lvalue = Value.asLong(value);
     if (lvalue==DB.NULL) return DB.NULL;
 
+    if (arrayMap.isCellIndexUnique(index))
+    {
+      long key = arrayMap.getLargestKey()+1;
+      long owner = arrayMap.putUnique(key, index, lvalue);
+      if (owner!=key) return -owner;
+      setModified(true);
+      return key;
+    }
+
     OptionalLong existing = arrayMap.queryByCell(index, lvalue, lvalue).findAny();
     if (existing.isPresent()) return -existing.getAsLong();
 
@@ -82,6 +82,36 @@ public class DbFile
     longBuffer.get(array, 0, length);
   }
 
+  /**
+   * A view of a range of the file as bytes. The view shares content with the file, so nothing is copied.
+   * @param position the position, in longs
+   * @param length the length, in bytes
+   * @return the view
+   */
+  public ByteBuffer byteView(long position, int length)
+  {
+    if (byteBuffer == null) createBuffer();
+    ByteBuffer view = byteBuffer.duplicate();
+    view.limit((int)(position*8)+length);
+    view.position((int)(position*8));
+    return view.slice();
+  }
+
+  /**
+   * A read-only view of a range of the file, sharing content with the file
+   * @param position the position
+   * @param length the length
+   * @return the view
+   */
+  public LongBuffer longView(long position, int length)
+  {
+    if (byteBuffer == null) createBuffer();
+    LongBuffer view = longBuffer.duplicate();
+    view.limit((int)position+length);
+    view.position((int)position);
+    return view.slice().asReadOnlyBuffer();
+  }
+
   public long getCapacity()
   {
     if (byteBuffer == null) createBuffer();
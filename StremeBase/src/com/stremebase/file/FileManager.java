@@ -45,11 +45,11 @@ public class FileManager implements AutoCloseable
   {
     private static final long serialVersionUID = 2497223089728027757L;
 
-    public ValueFile valueFile;
+    public DbFile valueFile;
     public long slotPosition;
     public long slotSize;
 
-    ValueSlot(ValueFile valueFile, long slotPosition, long slotSize)
+    ValueSlot(DbFile valueFile, long slotPosition, long slotSize)
     {
       this.valueFile = valueFile;
       this.slotPosition = slotPosition;
@@ -172,7 +172,7 @@ public class FileManager implements AutoCloseable
     for (File f: fileList)
     {
       long id = Long.parseLong(f.getName().substring(2, f.getName().length()-3));
-      KeyFile file = new KeyFile(id, f.getAbsolutePath(), pd.getNodeSize(), pd.getKeysToaKeyFile(), (catalog.db.PERSISTED && pd.map().isPersisted()));
+      KeyFile file = new KeyFile(id, f.getAbsolutePath(), pd.getNodeSize(), pd.getKeysToaKeyFile(), pd.isColumnar(), (catalog.db.PERSISTED && pd.map().isPersisted()));
       files.put(id, file);
     }
   }
@@ -211,7 +211,7 @@ public class FileManager implements AutoCloseable
     if (nodeSize!=DB.NULL && result == null)
     {
       String fileName = getDirectory(property, 'K', true)+"db"+fileId+".db";
-      result = new KeyFile(fileId, fileName, nodeSize, keysToAKeyFile, (catalog.db.PERSISTED && property.map().isPersisted()));
+      result = new KeyFile(fileId, fileName, nodeSize, keysToAKeyFile, property.isColumnar(), (catalog.db.PERSISTED && property.map().isPersisted()));
       property.getKeyFiles().put(fileId, result);
     }
     return result;
@@ -243,6 +243,19 @@ public class FileManager implements AutoCloseable
     return slot;
   }
 
+  /**
+   * A slot inside a key node, for lists that are stored inline (see {@link com.stremebase.base.Catalog#INLINEVALUES}).
+   * Inline slots are never released to the free slot cache.
+   * @param keyFile the key file
+   * @param slotPosition position of the inline longs of the node
+   * @param slotSize count of the inline longs
+   * @return the slot
+   */
+  public ValueSlot getInlineSlot(KeyFile keyFile, long slotPosition, long slotSize)
+  {
+    return new ValueSlot(keyFile, slotPosition, slotSize);
+  }
+
   protected ValueFile createNewValueFile(MapGetter property, long requiredSize)
   {
     long fileId = property.getNextValueFileId();
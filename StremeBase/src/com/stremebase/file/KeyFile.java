@@ -15,6 +15,9 @@ import com.stremebase.base.DB;
 
 /**
  * A buffer for storing data for keys
+ * <p>
+ * Nodes are stored one after another. In a columnar key file, the active flags of all keys come first,
+ * followed by the first cell of all keys and so on, see {@link com.stremebase.base.Catalog#COLUMNAR}.
  * For internal use only.
  */
 public class KeyFile extends DbFile
@@ -22,13 +25,16 @@ public class KeyFile extends DbFile
   public final long fromKey;
   protected final long nodeSize;
   protected final long keysToAKeyFile;
+  protected final boolean columnar;
   protected long keySize = DB.NULL;
+  protected ZoneMap zoneMap;
 
-  protected KeyFile(long id, String fileName, long nodeSize, long keysToAKeyFile, boolean persisted)
+  protected KeyFile(long id, String fileName, long nodeSize, long keysToAKeyFile, boolean columnar, boolean persisted)
   {
     super(id, fileName, keysToAKeyFile * nodeSize +1, persisted);
     this.nodeSize = nodeSize;
     this.keysToAKeyFile = keysToAKeyFile;
+    this.columnar = columnar;
     this.fromKey = id<0 ? (id+1) * keysToAKeyFile : (id-1) * keysToAKeyFile;
   }
 
@@ -42,9 +48,37 @@ public class KeyFile extends DbFile
   public int base(long key)
   {
     if (key<0) key = -key;
+    if (columnar) return (int) (key % keysToAKeyFile +1);
     return (int) ((key % keysToAKeyFile)*nodeSize+1);
   }
 
+  /**
+   * Position of a cell of a node
+   * @param base base of the node
+   * @param index index of the cell, the active flag being -1
+   * @return the position
+   */
+  public int cell(int base, int index)
+  {
+    if (columnar) return (int) (base+(index+1)*keysToAKeyFile);
+    return base+1+index;
+  }
+
+  public boolean isColumnar()
+  {
+    return columnar;
+  }
+
+  public ZoneMap getZoneMap()
+  {
+    return zoneMap;
+  }
+
+  public void setZoneMap(ZoneMap zoneMap)
+  {
+    this.zoneMap = zoneMap;
+  }
+
   public boolean setActive(int base, boolean active)
   {
     boolean state = read(base)==1;
@@ -0,0 +1,89 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+
+package com.stremebase.file;
+
+import java.util.Arrays;
+
+import com.stremebase.base.DB;
+
+
+/**
+ * Smallest and largest value of each cell in each zone of ZONE consecutive keys of a key file.
+ * <p>
+ * Scans skip the zones that cannot hold a value in the queried range. Writes only widen the bounds and
+ * removals do not narrow them, so the bounds may be loose but never wrong. DB.NULLs are not counted:
+ * a zone that holds only DB.NULLs in a cell matches no range.
+ * For internal use only.
+ * @author olli
+ */
+public class ZoneMap
+{
+  public static final int ZONE = 4096;
+
+  protected final int cells;
+  protected final long[] min;
+  protected final long[] max;
+
+  /**
+   * Creates an empty zone map
+   * @param keys keys in the key file
+   * @param cells cells per key
+   */
+  public ZoneMap(long keys, int cells)
+  {
+    this.cells = cells;
+    int size = (int)((keys+ZONE-1)/ZONE)*cells;
+    min = new long[size];
+    max = new long[size];
+    Arrays.fill(min, Long.MAX_VALUE);
+    Arrays.fill(max, Long.MIN_VALUE);
+  }
+
+  /**
+   * Count of zones
+   * @return the count
+   */
+  public int zones()
+  {
+    return min.length/cells;
+  }
+
+  /**
+   * Widens the bounds of a zone to include a value
+   * @param position position of the key in the key file, key - fromKey
+   * @param cell the cell
+   * @param value the value
+   */
+  public void add(long position, int cell, long value)
+  {
+    if (value==DB.NULL) return;
+    int i = (int)(position/ZONE)*cells+cell;
+    if (value<min[i]) min[i] = value;
+    if (value>max[i]) max[i] = value;
+  }
+
+  /**
+   * Whether some of the cells of a zone may hold a value in range
+   * @param zone the zone
+   * @param fromCell first cell, inclusive
+   * @param toCell last cell, exclusive
+   * @param lowestValue lowest value, inclusive
+   * @param highestValue highest value, inclusive
+   * @return false if none can
+   */
+  public boolean mayContain(int zone, int fromCell, int toCell, long lowestValue, long highestValue)
+  {
+    for (int i = zone*cells+fromCell; i<zone*cells+toCell; i++) if (min[i]<=highestValue && max[i]>=lowestValue) return true;
+    return false;
+  }
+}
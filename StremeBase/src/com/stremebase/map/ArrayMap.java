@@ -11,18 +11,30 @@
 
 package com.stremebase.map;
 
+import java.nio.LongBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
 import java.util.stream.LongStream;
 
+import com.stremebase.base.Aggregate;
 import com.stremebase.base.DB;
 import com.stremebase.base.StremeMap;
+import com.stremebase.base.IndexStatistics;
 import com.stremebase.base.Indexer;
 import com.stremebase.file.KeyFile;
+import com.stremebase.file.ZoneMap;
+import com.stremebase.util.ExpandingArray;
+import com.stremebase.util.LongArrays;
 
 /**
  * A map that stores a fixed-size array of longs
+ * <p>
+ * The arrays are stored row by row, or column by column if the map is {@link com.stremebase.base.Catalog#COLUMNAR}.
+ * Scanning queries skip the zones of keys that a {@link ZoneMap} rules out.
  * @author olli
  *
  */
@@ -41,11 +53,11 @@ public class ArrayMap extends StremeMap
   }
 
   @Override
-  protected void addIndex(DB db, byte indexType)
+  protected void addIndex(DB db, byte indexType, boolean online)
   {
     if (indexType == DB.ONE_TO_ONE || indexType == DB.MANY_TO_ONE)
       throw new IllegalArgumentException("This indextype can be used only for single cells (method addIndextoCell)");
-    super.addIndex(db, indexType);
+    super.addIndex(db, indexType, online);
   }
 
   @Override
@@ -87,36 +99,99 @@ public class ArrayMap extends StremeMap
     return indices.containsKey(cell);
   }
 
+  /**
+   * Whether cell index can be used in queries (false while it is being built online)
+   * @param cell the cell index
+   * @return true if is
+   */
+  public boolean isCellIndexReady(int cell)
+  {
+    Indexer i = indices.get(cell);
+    return i!=null && i.isReady();
+  }
+
+  /**
+   * Whether cell has a DB.UNIQUE index
+   * @param cell the cell index
+   * @return true if has
+   */
+  public boolean isCellIndexUnique(int cell)
+  {
+    Indexer i = indices.get(cell);
+    return i!=null && i.isUnique();
+  }
+
   /**
    * Adds an index to a specific cell
    * @param db the database
-   * @param indexType the index type (either DB.ONE_TO_ONE or DB.MANY_TO_ONE)
+   * @param indexType the index type (DB.ONE_TO_ONE, DB.MANY_TO_ONE or DB.UNIQUE)
    * @param cell the index of the cell
    */
   public void addIndextoCell(DB db, byte indexType, int cell)
+  {
+    addIndextoCell(db, indexType, cell, false);
+  }
+
+  /**
+   * Adds an index to a specific cell
+   * @param db the database
+   * @param indexType the index type (DB.ONE_TO_ONE, DB.MANY_TO_ONE or DB.UNIQUE)
+   * @param cell the index of the cell
+   * @param online if true, existing keys are indexed in slices while the map keeps serving. Not supported for DB.UNIQUE.
+   */
+  public void addIndextoCell(DB db, byte indexType, int cell, boolean online)
   {
     if (isCellIndexed(cell)) return;
-    if (indexType != DB.ONE_TO_ONE && indexType != DB.MANY_TO_ONE)
-      throw new IllegalArgumentException("For single cells, indextype must be either DB.ONE_TO_ONE or DB.MANY_TO_ONE");
+    if (indexType != DB.ONE_TO_ONE && indexType != DB.MANY_TO_ONE && indexType != DB.UNIQUE)
+      throw new IllegalArgumentException("For single cells, indextype must be either DB.ONE_TO_ONE, DB.MANY_TO_ONE or DB.UNIQUE");
+    if (online && indexType==DB.UNIQUE) throw new IllegalArgumentException("DB.UNIQUE index cannot be built online, because uniqueness could not be checked during the build");
 
     Indexer cIndexer = new Indexer(db, this, indexType, cell);
     indices.put(cell, cIndexer);
-    if (!isEmpty() && (cIndexer.isEmpty())) reIndexCell(cell);
+    if (isEmpty() || !cIndexer.isEmpty()) return;
+    if (online) cIndexer.build(keys().toArray(), key -> LongStream.of(get(key, cell)));
+    else reIndexCell(cell);
   }
 
   /**
    * Reindexes cell-specific index
    * Mainly for internal use.
+   * If a DB.UNIQUE index finds a value in two keys, the index is dropped and IllegalArgumentException is thrown.
    * @param cell the index of the index
    */
   public void reIndexCell(int cell)
   {
     Indexer cIndexer = indices.get(cell);
     cIndexer.clear();
-    keys().forEach(key -> (cIndexer.index(key, get(key, cell))));
+    try
+    {
+      keys().forEach(key ->
+      {
+        long value = get(key, cell);
+        cIndexer.checkUnique(key, value);
+        cIndexer.index(key, value);
+      });
+    }
+    catch (IllegalArgumentException e)
+    {
+      dropIndexFromCell(cell);
+      throw e;
+    }
     cIndexer.flush();
   }
 
+  /**
+   * Statistics of a cell index, see {@link com.stremebase.base.IndexStatistics}
+   * @param cell the index of the cell
+   * @return the statistics, or null if the cell is not indexed or the index is being built
+   */
+  public IndexStatistics getCellIndexStatistics(int cell)
+  {
+    Indexer i = indices.get(cell);
+    if (i==null) return null;
+    return i.getStatistics();
+  }
+
   /**
    * Removes an index
    * @param cell the index of the index
@@ -126,7 +201,7 @@ public class ArrayMap extends StremeMap
     Indexer i = indices.get(cell);
     if (i == null) return;
     i.clear();
-    indices.put(cell, null);
+    indices.remove(cell);
   }
 
   protected void index(long key, long[] oldValues, long[] newValues)
@@ -175,7 +250,8 @@ public class ArrayMap extends StremeMap
     if (buf == null) return false;
     int base = buf.base(key);
     if (buf.read(base) == 0) return false;
-    buf.readToArray(base+1, values, nodeSize-1);
+    if (!columnar) buf.readToArray(base+1, values, nodeSize-1);
+    else for (int i=0; i<nodeSize-1; i++) values[i] = buf.read(buf.cell(base, i));
     return true;
   }
 
@@ -193,6 +269,23 @@ public class ArrayMap extends StremeMap
     return values;
   }
 
+  /**
+   * Returns the values associated with the key as a read-only view over the key node, without copying them.
+   * The view is valid until the values of the key are modified next.
+   * Columnar maps have no contiguous node, so their view is over a copy.
+   * @param key the key
+   * @return the view, or null if there are no values
+   */
+  public LongBuffer getView(long key)
+  {
+    KeyFile buf = getData(key, false);
+    if (buf == null) return null;
+    int base = buf.base(key);
+    if (buf.read(base) == 0) return null;
+    if (columnar) return LongBuffer.wrap(get(key)).asReadOnlyBuffer();
+    return buf.longView(base+1, nodeSize-1);
+  }
+
   /**
    * Returns the value at given cell
    * @param key the key
@@ -205,7 +298,7 @@ public class ArrayMap extends StremeMap
     if (buf == null) return DB.NULL;
     int base = buf.base(key);
     if (buf.read(base) == 0) return DB.NULL;
-    return buf.read(base+1+index);
+    return buf.read(buf.cell(base, index));
   }
 
   /**
@@ -225,42 +318,117 @@ public class ArrayMap extends StremeMap
     }
 
     if (key < 0) throw new IllegalArgumentException("Negative keys are not supported (" + key + ")");
+    for (Map.Entry<Integer, Indexer> cell: indices.entrySet()) cell.getValue().checkUnique(key, values[cell.getKey()]);
     KeyFile buf = getData(key, true);
     int base = buf.base(key);
 
     long[] oldValues = null;
 
-    if (!buf.setActive(base, true) && isIndexed()) oldValues = get(key);
+    if (!buf.setActive(base, true) && (isIndexed() || !indices.isEmpty())) oldValues = get(key);
     if (isIndexed()) index(key, oldValues, values);
-    buf.write(base+1, values);
+    for (Map.Entry<Integer, Indexer> cell: indices.entrySet())
+    {
+      if (oldValues!=null) cell.getValue().unIndex(key, oldValues[cell.getKey()]);
+      cell.getValue().index(key, values[cell.getKey()]);
+    }
+    if (!columnar) buf.write(base+1, values);
+    else for (int i=0; i<values.length; i++) buf.write(buf.cell(base, i), values[i]);
+    for (int i=0; i<values.length; i++) widenZone(buf, key, i, values[i]);
   }
 
   @Override
   public void put(long key, int index, long value)
   {
     if (key < 0) throw new IllegalArgumentException("Negative keys are not supported (" + key + ")");
-    if (index < 0 || index>this.nodeSize) throw new IllegalArgumentException("Index out of range (" + index + ")");
+    if (index < 0 || index>=this.nodeSize-1) throw new IllegalArgumentException("Index out of range (" + index + ")");
+    Indexer unique = indices.get(index);
+    if (unique!=null) unique.checkUnique(key, value);
     KeyFile buf = getData(key, true);
     int base = buf.base(key);
     boolean olds = !buf.setActive(base, true);
+    write(buf, base, olds, key, index, value);
+  }
+
+  /**
+   * Stores the value only if the cell is empty (DB.NULL, or the key does not exist), looking up the key only once
+   * @param key the key
+   * @param index the cell
+   * @param value the value
+   * @return the value already in the cell, or DB.NULL if the value was stored
+   */
+  public long putIfAbsent(long key, int index, long value)
+  {
+    if (key < 0) throw new IllegalArgumentException("Negative keys are not supported (" + key + ")");
+    if (index < 0 || index>=this.nodeSize-1) throw new IllegalArgumentException("Index out of range (" + index + ")");
+    KeyFile buf = getData(key, true);
+    int base = buf.base(key);
+    boolean olds = !buf.setActive(base, true);
+    if (olds)
+    {
+      long existing = buf.read(buf.cell(base, index));
+      if (existing!=DB.NULL) return existing;
+    }
+    write(buf, base, olds, key, index, value);
+    return DB.NULL;
+  }
+
+  /**
+   * Stores the value to a cell that has a DB.UNIQUE index, unless some key already holds the value.
+   * Lookup and insert are a single probe of the index and atomic with respect to other calls of this method.
+   * @param key the key
+   * @param cell the cell
+   * @param value the value
+   * @return the key that holds the value: the given key if the value was stored (or was already there), DB.NULL if value is DB.NULL
+   */
+  public long putUnique(long key, int cell, long value)
+  {
+    Indexer unique = indices.get(cell);
+    if (unique==null || !unique.isUnique()) throw new IllegalArgumentException(cell+" cell does not have an unique index");
+    if (key < 0) throw new IllegalArgumentException("Negative keys are not supported (" + key + ")");
+    if (value==DB.NULL) return DB.NULL;
+
+    synchronized (unique)
+    {
+      long owner = unique.indexIfAbsent(key, value);
+      if (owner!=key) return owner;
+
+      KeyFile buf = getData(key, true);
+      int base = buf.base(key);
+      boolean olds = !buf.setActive(base, true);
+      long oldValue = olds ? buf.read(buf.cell(base, cell)) : DB.NULL;
+      if (olds && oldValue!=value) unique.unIndex(key, oldValue);
+      if (isIndexed())
+      {
+        if (olds) indexer.unIndex(key, oldValue);
+        indexer.index(key, value);
+      }
+      buf.write(buf.cell(base, cell), value);
+      widenZone(buf, key, cell, value);
+      return key;
+    }
+  }
+
+  protected void write(KeyFile buf, int base, boolean olds, long key, int index, long value)
+  {
     if (isIndexed() || indices.containsKey(index))
     {
       long oldValue = DB.NULL;
-      if (olds) oldValue = buf.read(base + index + 1);
+      if (olds) oldValue = buf.read(buf.cell(base, index));
       if (isIndexed())
       {
-        if (oldValue!=DB.NULL) indexer.unIndex(key, oldValue);
-        if (value!=DB.NULL) indexer.index(key, value);
+        if (olds) indexer.unIndex(key, oldValue);
+        indexer.index(key, value);
       }
 
       Indexer celli = indices.get(index);
       if (celli!=null)
       {
-        if (oldValue!=DB.NULL) celli.unIndex(key, oldValue);
-        if (value!=DB.NULL) celli.index(key, value);
+        if (olds) celli.unIndex(key, oldValue);
+        celli.index(key, value);
       }
     }
-    buf.write(base+1+index, value);
+    buf.write(buf.cell(base, index), value);
+    widenZone(buf, key, index, value);
   }
 
   /*public void fill(long key, long value)
@@ -272,33 +440,31 @@ public class ArrayMap extends StremeMap
   @Override
   public LongStream values(long key)
   {
-    KeyFile buf = getData(key, false);
-    if (buf == null) return LongStream.empty();
-    int base = buf.base(key);
     LongStream.Builder b = LongStream.builder();
-    for (int i=1; i<nodeSize; i++) b.add(buf.read(base + i));
+    forEachValue(key, b);
     return b.build();
   }
 
+  @Override
+  public void forEachValue(long key, LongConsumer action)
+  {
+    KeyFile buf = getData(key, false);
+    if (buf == null) return;
+    int base = buf.base(key);
+    for (int i=0; i<nodeSize-1; i++) action.accept(buf.read(buf.cell(base, i)));
+  }
+
   @Override
   protected LongStream scanningQuery(long lowestValue, long highestValue)
   {
-    return keys().filter(key ->
-    {
-      //TODO: bulk read arrays?
-      return values(key).anyMatch(value -> (value!= DB.NULL && value >= lowestValue && value<=highestValue));
-    });
+    return scanCells(0, nodeSize-1, lowestValue, highestValue, null);
   }
 
   @Override
   protected LongStream scanningUnionQuery(long... values)
   {
     Arrays.sort(values);
-
-    return keys().filter(key ->
-    {
-      return values(key).anyMatch(value -> (Arrays.binarySearch(values, value)>=0 ? true : false));
-    });
+    return scanCells(0, nodeSize-1, DB.NULL, DB.NULL, values);
   }
 
   protected int indexOf(long key, int fromIndex, long value)
@@ -308,7 +474,7 @@ public class ArrayMap extends StremeMap
     if (buf == null) return -1;
     int base = buf.base(key);
     if (buf.read(base) == 0) return -1;
-    for (int i = fromIndex; i < getValueCount(DB.NULL); i++) if (buf.read(base+1+i)==value) return i;
+    for (int i = fromIndex; i < getValueCount(DB.NULL); i++) if (buf.read(buf.cell(base, i))==value) return i;
     return -1;
   }
 
@@ -321,18 +487,14 @@ public class ArrayMap extends StremeMap
    */
   public LongStream queryByCell(int index, long lowestValue, long highestValue)
   {
-    if (!isCellIndexed(index)) return scanningQueryByCell(index, lowestValue, highestValue);
+    if (!isCellIndexReady(index)) return scanningQueryByCell(index, lowestValue, highestValue);
     if (isIndexQuerySorted()) return indices.get(index).getKeysForValuesInRange(lowestValue, highestValue).sorted();
     return indices.get(index).getKeysForValuesInRange(lowestValue, highestValue);
   }
 
   protected LongStream scanningQueryByCell(int index, long lowestValue, long highestValue)
   {
-    return keys().filter(key ->
-    {
-      long value = get(key, index);
-      return value!= DB.NULL && value >= lowestValue && value<=highestValue;
-    });
+    return scanCells(index, index+1, lowestValue, highestValue, null);
   }
 
   /**
@@ -343,7 +505,7 @@ public class ArrayMap extends StremeMap
    */
   public LongStream unionQueryByCell(int index, long...values)
   {
-    if (!indices.containsKey(index)) return scanningUnionQueryByCell(index, values);
+    if (!isCellIndexReady(index)) return scanningUnionQueryByCell(index, values);
     if (isIndexQuerySorted()) return indices.get(index).getKeysForValues(values).sorted();
     return indices.get(index).getKeysForValues(values);
   }
@@ -378,12 +540,182 @@ public class ArrayMap extends StremeMap
   protected LongStream scanningUnionQueryByCell(int index, long... values)
   {
     Arrays.sort(values);
+    return scanCells(index, index+1, DB.NULL, DB.NULL, values);
+  }
 
-    return keys().filter(key ->
+  /**
+   * Bulk scan for keys that have, in some of the cells, a value in range or, if sortedValues is given, one of the values.
+   * Zones of keys that cannot match are skipped, see {@link ZoneMap}.
+   * @param fromCell first cell, inclusive
+   * @param toCell last cell, exclusive
+   * @param lowestValue lowest value, inclusive
+   * @param highestValue highest value, inclusive
+   * @param sortedValues sorted values, or null for a range scan
+   * @return the matching keys, ascending
+   */
+  protected LongStream scanCells(int fromCell, int toCell, long lowestValue, long highestValue, long[] sortedValues)
+  {
+    if (sortedValues!=null)
+    {
+      if (sortedValues.length==0) return LongStream.empty();
+      lowestValue = sortedValues[0];
+      highestValue = sortedValues[sortedValues.length-1];
+    }
+    final long low = lowestValue;
+    final long high = highestValue;
+    if (columnar) return scanZones(fromCell, toCell, low, high,
+      (file, fromKey, toKey, remaining, matches) -> scanColumns(file, fromKey, toKey, remaining, fromCell, toCell, low, high, sortedValues, matches));
+    NodeMatcher matcher = (file, key, block, offset) -> sortedValues==null ?
+      LongArrays.anyInRange(block, offset+1+fromCell, offset+1+toCell, low, high) :
+        LongArrays.anyIn(block, offset+1+fromCell, offset+1+toCell, sortedValues);
+    return scanZones(fromCell, toCell, low, high, (file, fromKey, toKey, remaining, matches) -> scanNodes(file, fromKey, toKey, remaining, matcher, matches));
+  }
+
+  /**
+   * Scans a range of keys of a columnar key file SCANBLOCK keys at a time, reading only the active flags and the given cells
+   */
+  protected long scanColumns(KeyFile file, long fromKey, long toKey, long remaining, int fromCell, int toCell,
+    long lowestValue, long highestValue, long[] sortedValues, ExpandingArray matches)
+  {
+    int blockKeys = (int)Math.min(SCANBLOCK, toKey-fromKey);
+    long[] active = new long[blockKeys];
+    long[] column = new long[blockKeys];
+    boolean[] matched = new boolean[blockKeys];
+    for (long from = fromKey; from<toKey && remaining>0; from+=blockKeys)
     {
-      long value = get(key, index);
-      if (value==DB.NULL) return false;
-      return Arrays.binarySearch(values, value)>=0 ? true : false;
+      int keys = (int)Math.min(blockKeys, toKey-from);
+      int base = file.base(from);
+      file.readToArray(base, active, keys);
+      Arrays.fill(matched, 0, keys, false);
+      for (int cell = fromCell; cell<toCell; cell++)
+      {
+        file.readToArray(file.cell(base, cell), column, keys);
+        for (int i=0; i<keys; i++) if (!matched[i])
+          matched[i] = sortedValues==null ? LongArrays.anyInRange(column, i, i+1, lowestValue, highestValue) : LongArrays.anyIn(column, i, i+1, sortedValues);
+      }
+      for (int i=0; i<keys; i++) if (active[i]==1)
+      {
+        remaining--;
+        if (matched[i]) matches.add(from+i);
+      }
+    }
+    return remaining;
+  }
+
+  /**
+   * Aggregates the values of a cell
+   * @param cell the cell
+   * @return the aggregate
+   */
+  public Aggregate aggregateCell(int cell)
+  {
+    return aggregateCell(cell, 0, Long.MAX_VALUE, DB.NULL, Long.MAX_VALUE, null);
+  }
+
+  /**
+   * Aggregates the values of a cell that are in range
+   * @param cell the cell
+   * @param lowestKey lowest key, inclusive
+   * @param highestKey highest key, inclusive
+   * @param lowestValue lowest value, inclusive
+   * @param highestValue highest value, inclusive
+   * @return the aggregate
+   */
+  public Aggregate aggregateCell(int cell, long lowestKey, long highestKey, long lowestValue, long highestValue)
+  {
+    return aggregateCell(cell, lowestKey, highestKey, lowestValue, highestValue, null);
+  }
+
+  /**
+   * Aggregates the values of a cell that pass a predicate. The predicate is called in parallel.
+   * @param cell the cell
+   * @param lowestKey lowest key, inclusive
+   * @param highestKey highest key, inclusive
+   * @param predicate the predicate
+   * @return the aggregate
+   */
+  public Aggregate aggregateCell(int cell, long lowestKey, long highestKey, LongPredicate predicate)
+  {
+    return aggregateCell(cell, lowestKey, highestKey, DB.NULL, Long.MAX_VALUE, predicate);
+  }
+
+  protected Aggregate aggregateCell(int cell, long lowestKey, long highestKey, long lowestValue, long highestValue, LongPredicate predicate)
+  {
+    if (cell < 0 || cell>=this.nodeSize-1) throw new IllegalArgumentException("Index out of range (" + cell + ")");
+    final long low = lowestValue==DB.NULL ? lowestValue+1 : lowestValue;
+    return aggregateZones(lowestKey, highestKey, cell, low, highestValue, result ->
+    {
+      LongConsumer add = value ->
+      {
+        if (value>=low && value<=highestValue && (predicate==null || predicate.test(value))) result.add(value);
+      };
+      if (columnar) return (file, fromKey, toKey, remaining, matches) -> forEachInColumn(file, fromKey, toKey, remaining, cell, add);
+      NodeMatcher adder = (file, key, block, offset) ->
+      {
+        add.accept(block[offset+1+cell]);
+        return false;
+      };
+      return (file, fromKey, toKey, remaining, matches) -> scanNodes(file, fromKey, toKey, remaining, adder, matches);
     });
   }
+
+  /**
+   * Reads a cell of a range of keys of a columnar key file SCANBLOCK keys at a time
+   * @return active keys left after the range
+   */
+  protected long forEachInColumn(KeyFile file, long fromKey, long toKey, long remaining, int cell, LongConsumer action)
+  {
+    int blockKeys = (int)Math.min(SCANBLOCK, toKey-fromKey);
+    long[] active = new long[blockKeys];
+    long[] column = new long[blockKeys];
+    for (long from = fromKey; from<toKey && remaining>0; from+=blockKeys)
+    {
+      int keys = (int)Math.min(blockKeys, toKey-from);
+      int base = file.base(from);
+      file.readToArray(base, active, keys);
+      file.readToArray(file.cell(base, cell), column, keys);
+      for (int i=0; i<keys; i++) if (active[i]==1)
+      {
+        remaining--;
+        action.accept(column[i]);
+      }
+    }
+    return remaining;
+  }
+
+  @Override
+  protected ZoneMap buildZoneMap(KeyFile file)
+  {
+    int cells = nodeSize-1;
+    ZoneMap zones = new ZoneMap(keysToAKeyFile, cells);
+    int blockKeys = (int)Math.min(Math.max(1, SCANBLOCK/nodeSize), keysToAKeyFile);
+    long[] block = new long[blockKeys*nodeSize];
+    long[] active = new long[blockKeys];
+    long remaining = file.size();
+    for (long from = 0; from<keysToAKeyFile && remaining>0; from+=blockKeys)
+    {
+      int keys = (int)Math.min(blockKeys, keysToAKeyFile-from);
+      int base = file.base(file.fromKey+from);
+      if (!columnar)
+      {
+        file.readToArray(base, block, keys*nodeSize);
+        for (int i=0, offset=0; i<keys; i++, offset+=nodeSize) if (block[offset]==1)
+        {
+          remaining--;
+          for (int cell=0; cell<cells; cell++) zones.add(from+i, cell, block[offset+1+cell]);
+        }
+      }
+      else
+      {
+        file.readToArray(base, active, keys);
+        for (int cell=0; cell<cells; cell++)
+        {
+          file.readToArray(file.cell(base, cell), block, keys);
+          for (int i=0; i<keys; i++) if (active[i]==1) zones.add(from+i, cell, block[i]);
+        }
+        for (int i=0; i<keys; i++) if (active[i]==1) remaining--;
+      }
+    }
+    return zones;
+  }
 }
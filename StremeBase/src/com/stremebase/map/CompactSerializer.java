@@ -0,0 +1,584 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+package com.stremebase.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A compact binary ObjectSerializer without class descriptors.
+ * <p>
+ * Every value starts with a one-byte type tag. Integral numbers and lengths are zigzag varints, strings are written
+ * as modified UTF-8. Supported directly: null, boxed primitives, String, arrays of byte, int, long and double,
+ * ArrayList and HashMap of supported values. Records implement {@link java.io.Externalizable}: only the class name and
+ * what writeExternal writes is stored. Anything else falls back to Java serialization.
+ * <p>
+ * Sizes are computed with a counting pass over the same code. Only the bytes of Java serialization fallbacks are kept
+ * from size() for the following write() of the same object, so that they are not serialized twice. They are kept per thread,
+ * so that concurrent readers and writers of a map do not see each other's bytes.
+ * @author olli
+ */
+public class CompactSerializer implements ObjectSerializer
+{
+  protected static final int NULL = 0;
+  protected static final int TRUE = 1;
+  protected static final int FALSE = 2;
+  protected static final int BYTE = 3;
+  protected static final int SHORT = 4;
+  protected static final int CHAR = 5;
+  protected static final int INT = 6;
+  protected static final int LONG = 7;
+  protected static final int FLOAT = 8;
+  protected static final int DOUBLE = 9;
+  protected static final int STRING = 10;
+  protected static final int BYTES = 11;
+  protected static final int INTS = 12;
+  protected static final int LONGS = 13;
+  protected static final int DOUBLES = 14;
+  protected static final int LIST = 15;
+  protected static final int MAP = 16;
+  protected static final int EXTERNALIZABLE = 17;
+  protected static final int JAVA = 18;
+
+  protected final ThreadLocal<Sized> sized = ThreadLocal.withInitial(Sized::new);
+
+  @Override
+  public int size(Serializable object)
+  {
+    Output output = new Output(null, null);
+    try
+    {
+      output.writeObject(object);
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+    Sized last = sized.get();
+    last.object = object;
+    last.javaBytes = output.javaBytes;
+    return output.size;
+  }
+
+  @Override
+  public void write(Serializable object, ByteBuffer buffer)
+  {
+    Sized last = sized.get();
+    try
+    {
+      new Output(buffer, object==last.object ? last.javaBytes : null).writeObject(object);
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+    finally
+    {
+      last.object = null;
+      last.javaBytes = null;
+    }
+  }
+
+  @Override
+  public Serializable read(ByteBuffer buffer)
+  {
+    try
+    {
+      return (Serializable) new Input(buffer).readObject();
+    }
+    catch (IOException | ClassNotFoundException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * The object sized last by a thread, and the bytes of its Java serialization fallbacks
+   */
+  protected static class Sized
+  {
+    protected Serializable object;
+    protected List<byte[]> javaBytes;
+  }
+
+  /**
+   * Writes to a buffer, or only counts the bytes if the buffer is null.
+   * Java serialization fallbacks are collected to javaBytes when counting, and taken from it in order when writing.
+   */
+  protected static class Output extends OutputStream implements ObjectOutput
+  {
+    protected final ByteBuffer buffer;
+    protected int size;
+    protected List<byte[]> javaBytes;
+    protected int javaIndex;
+
+    public Output(ByteBuffer buffer, List<byte[]> javaBytes)
+    {
+      this.buffer = buffer;
+      this.javaBytes = javaBytes;
+    }
+
+    @Override
+    public void write(int b)
+    {
+      if (buffer!=null) buffer.put((byte)b);
+      size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+      if (buffer!=null) buffer.put(b, off, len);
+      size += len;
+    }
+
+    @Override
+    public void writeBoolean(boolean v)
+    {
+      write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v)
+    {
+      write(v);
+    }
+
+    @Override
+    public void writeShort(int v)
+    {
+      write(v >>> 8);
+      write(v);
+    }
+
+    @Override
+    public void writeChar(int v)
+    {
+      writeShort(v);
+    }
+
+    @Override
+    public void writeInt(int v)
+    {
+      if (buffer!=null) buffer.putInt(v);
+      size += 4;
+    }
+
+    @Override
+    public void writeLong(long v)
+    {
+      if (buffer!=null) buffer.putLong(v);
+      size += 8;
+    }
+
+    @Override
+    public void writeFloat(float v)
+    {
+      writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(double v)
+    {
+      writeLong(Double.doubleToLongBits(v));
+    }
+
+    @Override
+    public void writeBytes(String s)
+    {
+      for (int i=0; i<s.length(); i++) write(s.charAt(i));
+    }
+
+    @Override
+    public void writeChars(String s)
+    {
+      for (int i=0; i<s.length(); i++) writeChar(s.charAt(i));
+    }
+
+    @Override
+    public void writeUTF(String s)
+    {
+      writeVarLong(s.length());
+      for (int i=0; i<s.length(); i++)
+      {
+        char c = s.charAt(i);
+        if (c<0x80) write(c);
+        else if (c<0x800)
+        {
+          write(0xc0 | (c >> 6));
+          write(0x80 | (c & 0x3f));
+        }
+        else
+        {
+          write(0xe0 | (c >> 12));
+          write(0x80 | ((c >> 6) & 0x3f));
+          write(0x80 | (c & 0x3f));
+        }
+      }
+    }
+
+    public void writeVarLong(long v)
+    {
+      long zigzag = (v << 1) ^ (v >> 63);
+      while ((zigzag & ~0x7fl)!=0)
+      {
+        write((int)(zigzag & 0x7f) | 0x80);
+        zigzag >>>= 7;
+      }
+      write((int)zigzag);
+    }
+
+    @Override
+    public void writeObject(Object o) throws IOException
+    {
+      if (o==null) write(NULL);
+      else if (o instanceof Boolean) write((Boolean)o ? TRUE : FALSE);
+      else if (o instanceof Byte)
+      {
+        write(BYTE);
+        write((Byte)o);
+      }
+      else if (o instanceof Short)
+      {
+        write(SHORT);
+        writeVarLong((Short)o);
+      }
+      else if (o instanceof Character)
+      {
+        write(CHAR);
+        writeVarLong((Character)o);
+      }
+      else if (o instanceof Integer)
+      {
+        write(INT);
+        writeVarLong((Integer)o);
+      }
+      else if (o instanceof Long)
+      {
+        write(LONG);
+        writeVarLong((Long)o);
+      }
+      else if (o instanceof Float)
+      {
+        write(FLOAT);
+        writeFloat((Float)o);
+      }
+      else if (o instanceof Double)
+      {
+        write(DOUBLE);
+        writeDouble((Double)o);
+      }
+      else if (o instanceof String)
+      {
+        write(STRING);
+        writeUTF((String)o);
+      }
+      else if (o instanceof byte[])
+      {
+        byte[] a = (byte[])o;
+        write(BYTES);
+        writeVarLong(a.length);
+        write(a);
+      }
+      else if (o instanceof int[])
+      {
+        int[] a = (int[])o;
+        write(INTS);
+        writeVarLong(a.length);
+        for (int v: a) writeVarLong(v);
+      }
+      else if (o instanceof long[])
+      {
+        long[] a = (long[])o;
+        write(LONGS);
+        writeVarLong(a.length);
+        for (long v: a) writeVarLong(v);
+      }
+      else if (o instanceof double[])
+      {
+        double[] a = (double[])o;
+        write(DOUBLES);
+        writeVarLong(a.length);
+        for (double v: a) writeDouble(v);
+      }
+      else if (o instanceof Externalizable)
+      {
+        write(EXTERNALIZABLE);
+        writeUTF(o.getClass().getName());
+        ((Externalizable)o).writeExternal(this);
+      }
+      else if (o.getClass()==ArrayList.class)
+      {
+        List<?> list = (List<?>)o;
+        write(LIST);
+        writeVarLong(list.size());
+        for (Object element: list) writeObject(element);
+      }
+      else if (o.getClass()==HashMap.class)
+      {
+        Map<?, ?> map = (Map<?, ?>)o;
+        write(MAP);
+        writeVarLong(map.size());
+        for (Map.Entry<?, ?> entry: map.entrySet())
+        {
+          writeObject(entry.getKey());
+          writeObject(entry.getValue());
+        }
+      }
+      else
+      {
+        byte[] bytes;
+        if (buffer!=null && javaBytes!=null && javaIndex<javaBytes.size()) bytes = javaBytes.get(javaIndex++);
+        else
+        {
+          ByteArrayOutputStream baoStream = new ByteArrayOutputStream();
+          ObjectOutputStream ooStream = new ObjectOutputStream(baoStream);
+          ooStream.writeUnshared(o);
+          ooStream.close();
+          bytes = baoStream.toByteArray();
+          if (buffer==null)
+          {
+            if (javaBytes==null) javaBytes = new ArrayList<>();
+            javaBytes.add(bytes);
+          }
+        }
+        write(JAVA);
+        writeVarLong(bytes.length);
+        write(bytes);
+      }
+    }
+  }
+
+  /**
+   * Reads from a buffer, without copying it
+   */
+  protected static class Input extends JavaSerializer.BufferInputStream implements ObjectInput
+  {
+    public Input(ByteBuffer buffer)
+    {
+      super(buffer);
+    }
+
+    @Override
+    public void readFully(byte[] b)
+    {
+      buffer.get(b);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len)
+    {
+      buffer.get(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n)
+    {
+      return (int)skip(n);
+    }
+
+    @Override
+    public boolean readBoolean()
+    {
+      return buffer.get()!=0;
+    }
+
+    @Override
+    public byte readByte()
+    {
+      return buffer.get();
+    }
+
+    @Override
+    public int readUnsignedByte()
+    {
+      return buffer.get() & 0xff;
+    }
+
+    @Override
+    public short readShort()
+    {
+      return buffer.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort()
+    {
+      return buffer.getShort() & 0xffff;
+    }
+
+    @Override
+    public char readChar()
+    {
+      return buffer.getChar();
+    }
+
+    @Override
+    public int readInt()
+    {
+      return buffer.getInt();
+    }
+
+    @Override
+    public long readLong()
+    {
+      return buffer.getLong();
+    }
+
+    @Override
+    public float readFloat()
+    {
+      return buffer.getFloat();
+    }
+
+    @Override
+    public double readDouble()
+    {
+      return buffer.getDouble();
+    }
+
+    @Override
+    public String readLine()
+    {
+      if (!buffer.hasRemaining()) return null;
+      StringBuilder line = new StringBuilder();
+      while (buffer.hasRemaining())
+      {
+        char c = (char)(buffer.get() & 0xff);
+        if (c=='\n') break;
+        if (c!='\r') line.append(c);
+      }
+      return line.toString();
+    }
+
+    @Override
+    public String readUTF()
+    {
+      char[] chars = new char[(int)readVarLong()];
+      for (int i=0; i<chars.length; i++)
+      {
+        int c = buffer.get() & 0xff;
+        if (c>=0xe0) c = ((c & 0x0f) << 12) | ((buffer.get() & 0x3f) << 6) | (buffer.get() & 0x3f);
+        else if (c>=0xc0) c = ((c & 0x1f) << 6) | (buffer.get() & 0x3f);
+        chars[i] = (char)c;
+      }
+      return new String(chars);
+    }
+
+    public long readVarLong()
+    {
+      long zigzag = 0;
+      for (int shift = 0; ; shift+=7)
+      {
+        long b = buffer.get();
+        zigzag |= (b & 0x7f) << shift;
+        if (b>=0) break;
+      }
+      return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    @Override
+    public Object readObject() throws ClassNotFoundException, IOException
+    {
+      int tag = buffer.get();
+      switch (tag)
+      {
+        case NULL: return null;
+        case TRUE: return Boolean.TRUE;
+        case FALSE: return Boolean.FALSE;
+        case BYTE: return buffer.get();
+        case SHORT: return (short)readVarLong();
+        case CHAR: return (char)readVarLong();
+        case INT: return (int)readVarLong();
+        case LONG: return readVarLong();
+        case FLOAT: return readFloat();
+        case DOUBLE: return readDouble();
+        case STRING: return readUTF();
+        case BYTES:
+        {
+          byte[] a = new byte[(int)readVarLong()];
+          buffer.get(a);
+          return a;
+        }
+        case INTS:
+        {
+          int[] a = new int[(int)readVarLong()];
+          for (int i=0; i<a.length; i++) a[i] = (int)readVarLong();
+          return a;
+        }
+        case LONGS:
+        {
+          long[] a = new long[(int)readVarLong()];
+          for (int i=0; i<a.length; i++) a[i] = readVarLong();
+          return a;
+        }
+        case DOUBLES:
+        {
+          double[] a = new double[(int)readVarLong()];
+          for (int i=0; i<a.length; i++) a[i] = buffer.getDouble();
+          return a;
+        }
+        case LIST:
+        {
+          int size = (int)readVarLong();
+          ArrayList<Object> list = new ArrayList<>(size);
+          for (int i=0; i<size; i++) list.add(readObject());
+          return list;
+        }
+        case MAP:
+        {
+          int size = (int)readVarLong();
+          HashMap<Object, Object> map = new HashMap<>();
+          for (int i=0; i<size; i++) map.put(readObject(), readObject());
+          return map;
+        }
+        case EXTERNALIZABLE:
+        {
+          Externalizable record;
+          try
+          {
+            record = (Externalizable)Class.forName(readUTF()).getDeclaredConstructor().newInstance();
+          }
+          catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e)
+          {
+            throw new IOException(e);
+          }
+          record.readExternal(this);
+          return record;
+        }
+        case JAVA:
+        {
+          int length = (int)readVarLong();
+          ByteBuffer bytes = buffer.slice();
+          bytes.limit(length);
+          buffer.position(buffer.position()+length);
+          return new ObjectInputStream(new JavaSerializer.BufferInputStream(bytes)).readUnshared();
+        }
+        default: throw new IOException("Unknown type tag: "+tag);
+      }
+    }
+  }
+}
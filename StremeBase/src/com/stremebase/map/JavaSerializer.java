@@ -0,0 +1,130 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+package com.stremebase.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+
+/**
+ * The default ObjectSerializer, standard Java serialization with {@link java.io.ObjectOutputStream#writeUnshared(Object)}.
+ * <p>
+ * The size of an object is not known without serializing it, so size() serializes and write() copies the result.
+ * The result is kept per thread, so that concurrent readers and writers of a map do not see each other's bytes.
+ * @author olli
+ */
+public class JavaSerializer implements ObjectSerializer
+{
+  protected final ThreadLocal<Sized> sized = ThreadLocal.withInitial(Sized::new);
+
+  @Override
+  public int size(Serializable object)
+  {
+    ByteArrayOutputStream baoStream = new ByteArrayOutputStream();
+    try
+    {
+      ObjectOutputStream ooStream = new ObjectOutputStream(baoStream);
+      ooStream.writeUnshared(object);
+      ooStream.close();
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+    Sized last = sized.get();
+    last.object = object;
+    last.bytes = baoStream.toByteArray();
+    return last.bytes.length;
+  }
+
+  @Override
+  public void write(Serializable object, ByteBuffer buffer)
+  {
+    Sized last = sized.get();
+    if (object!=last.object || last.bytes==null) size(object);
+    buffer.put(last.bytes);
+    last.object = null;
+    last.bytes = null;
+  }
+
+  @Override
+  public Serializable read(ByteBuffer buffer)
+  {
+    try
+    {
+      ObjectInputStream ostream = new ObjectInputStream(new BufferInputStream(buffer));
+      return (Serializable) ostream.readUnshared();
+    }
+    catch (IOException | ClassNotFoundException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * The object sized last by a thread, and its serialized bytes
+   */
+  protected static class Sized
+  {
+    protected Serializable object;
+    protected byte[] bytes;
+  }
+
+  /**
+   * Reads a ByteBuffer as a stream, without copying it
+   */
+  protected static class BufferInputStream extends InputStream
+  {
+    protected final ByteBuffer buffer;
+
+    public BufferInputStream(ByteBuffer buffer)
+    {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+      if (!buffer.hasRemaining()) return -1;
+      return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    {
+      if (len==0) return 0;
+      if (!buffer.hasRemaining()) return -1;
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      return len;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+      int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position()+skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+      return buffer.remaining();
+    }
+  }
+}
@@ -11,18 +11,17 @@
 
 package com.stremebase.map;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.stream.LongStream;
 
 import com.stremebase.base.Catalog;
 import com.stremebase.base.DynamicMap;
 import com.stremebase.file.KeyFile;
-import com.stremebase.file.ValueFile;
+import com.stremebase.file.DbFile;
 
 
 /**
@@ -31,15 +30,39 @@ import com.stremebase.file.ValueFile;
  * The object's class must implement {@link java.io.Serializable}
  * <p>
  * ObjectMap does not support indexing or queries by value
+ * <p>
+ * The serialized bytes are stored packed 8 to a long, after the count of bytes (see {@link Catalog#PACKEDBYTES}).
+ * Objects are serialized with the {@link ObjectSerializer} of the map, Java serialization by default
+ * (see {@link Catalog#SERIALIZER}).
  * @author olli
  */
 public class ObjectMap extends DynamicMap
 {
+  protected boolean packed;
+  protected ObjectSerializer serializer;
+  protected ObjectCache objectCache;
+
   @Override
   public void initialize(String mapName, Catalog catalog)
   {
     catalog.setProperty(Catalog.NODESIZE, this, 5);
     catalog.setProperty(Catalog.INITIALCAPACITY, this, 0);
+    if (catalog.mapExistsOnDisk(mapName) && !catalog.hasProperty(Catalog.PACKEDBYTES, this)) catalog.putProperty(Catalog.PACKEDBYTES, this, false);
+    packed = (boolean) catalog.getProperty(Catalog.PACKEDBYTES, this);
+    catalog.putProperty(Catalog.PACKEDBYTES, this, packed);
+    if (catalog.mapExistsOnDisk(mapName) && !catalog.hasProperty(Catalog.SERIALIZER, this)) catalog.putProperty(Catalog.SERIALIZER, this, JavaSerializer.class);
+    Class<?> serializerClass = (Class<?>) catalog.getProperty(Catalog.SERIALIZER, this);
+    catalog.putProperty(Catalog.SERIALIZER, this, serializerClass);
+    try
+    {
+      serializer = (ObjectSerializer) serializerClass.getDeclaredConstructor().newInstance();
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+    int maxCachedObjects = (int) catalog.getProperty(Catalog.MAXCACHEDOBJECTS, this);
+    if (maxCachedObjects>0) objectCache = new ObjectCache(maxCachedObjects);
     super.initialize(mapName, catalog);
   }
 
@@ -56,8 +79,8 @@ public class ObjectMap extends DynamicMap
    */
   public boolean containsValue(Serializable value)
   {
-    long[] o = serialize(value);
-    return keys().filter(key -> listEquals(key, o)).findAny().isPresent();
+    byte[] o = serializeToBytes(value);
+    return keys().filter(key -> Arrays.equals(getBytes(key), o)).findAny().isPresent();
   }
 
   @Override
@@ -67,25 +90,66 @@ public class ObjectMap extends DynamicMap
   }
 
   /**
-   * Returns the object
+   * Returns the object. If the map caches objects (see {@link Catalog#MAXCACHEDOBJECTS}),
+   * repeated gets may return the same instance, which must then not be modified.
    * @param key the key
    * @return the object
    */
   public Serializable get(long key)
   {
-    return deSerialize(getAsBytes(key));
+    if (objectCache==null) return read(key);
+    Serializable object = objectCache.get(key);
+    if (object!=null) return object;
+    object = read(key);
+    if (object!=null) objectCache.put(key, object);
+    return object;
+  }
+
+  protected Serializable read(long key)
+  {
+    if (!packed) return deSerialize(getBytes(key));
+    if (!containsKey(key)) return null;
+    KeyFile header = getData(key, false);
+    int base = header.base(key);
+    DbFile file = slotFile(header, base);
+    int position = slotPosition(header, base);
+    return serializer.read(file.byteView(position+1, (int)file.read(position)));
+  }
+
+  /**
+   * The serialized bytes of the object, read in bulk from the slot
+   * @param key the key
+   * @return the bytes, or null
+   */
+  public byte[] getBytes(long key)
+  {
+    if (!containsKey(key)) return null;
+    KeyFile header = getData(key, false);
+    int base = header.base(key);
+    DbFile file = slotFile(header, base);
+    int position = slotPosition(header, base);
+    if (!packed)
+    {
+      byte[] bytes = new byte[(int)header.read(base+pLength)];
+      for (int i=0; i<bytes.length; i++) bytes[i] = (byte)file.read(position+i);
+      return bytes;
+    }
+    byte[] bytes = new byte[(int)file.read(position)];
+    file.byteView(position+1, bytes.length).get(bytes);
+    return bytes;
   }
 
   /**
-   * The serialized byte representation of the object 
+   * The serialized byte representation of the object, one byte per long
    * @param key the key
    * @return the bytes
    */
   public long[] getAsBytes(long key)
   {
-    if (!containsKey(key)) return null;
-    long[] o = new long[(int)super.getValueCount(key)];
-    get(key, o);
+    byte[] bytes = getBytes(key);
+    if (bytes==null) return null;
+    long[] o = new long[bytes.length];
+    for (int i=0; i<bytes.length; i++) o[i] = bytes[i];
     return o;
   }
 
@@ -96,8 +160,31 @@ public class ObjectMap extends DynamicMap
    */
   public void put(long key, Serializable value)
   {
-    final long[] array =  serialize(value);
-    put(key, 0, array);
+    if (objectCache!=null) objectCache.remove(key);
+    if (!packed)
+    {
+      store(key, toStored(serializeToBytes(value)));
+      return;
+    }
+    int size = serializer.size(value);
+    KeyFile header = reserve(key, 1+(size+7)/8);
+    int base = header.base(key);
+    DbFile file = slotFile(header, base);
+    int position = slotPosition(header, base);
+    file.write(position, size);
+    serializer.write(value, file.byteView(position+1, size));
+  }
+
+  /**
+   * Stores an object
+   * @param key the key
+   * @param bytes the serialized object, one byte per long
+   */
+  public void putBytes(long key, long[] bytes)
+  {
+    byte[] bArray = new byte[bytes.length];
+    for (int i=0; i<bytes.length; i++) bArray[i] = (byte)bytes[i];
+    putBytes(key, bArray);
   }
 
   /**
@@ -105,21 +192,54 @@ public class ObjectMap extends DynamicMap
    * @param key the key
    * @param bytes the serialized object
    */
-  public void putBytes(long key, long[] bytes)
+  public void putBytes(long key, byte[] bytes)
+  {
+    store(key, toStored(bytes));
+  }
+
+  /**
+   * Makes the slot of a key the given length, without writing anything to it
+   * @param key the key
+   * @param length the length, in longs
+   * @return the key file
+   */
+  protected KeyFile reserve(long key, int length)
+  {
+    if (key<0) throw new IllegalArgumentException("Negative keys are not supported ("+key+")");
+    KeyFile header = getData(key, true);
+    int base = header.base(key);
+    if (header.read(base)==0 || header.read(base+pSlotSize)<length)
+      createHeader(key, length, getFreeSlot(key, length<=inlineCapacity ? length : length*2));
+    else header.write(base+pLength, length);
+    return header;
+  }
+
+  protected void store(long key, long[] stored)
   {
-    put(key, 0, bytes);
+    if (objectCache!=null) objectCache.remove(key);
+    put(key, 0, stored);
+    KeyFile header = getData(key, false);
+    header.write(header.base(key)+pLength, stored.length);
   }
 
   @Override
   public void remove(long key)
   {
+    if (objectCache!=null) objectCache.remove(key);
     KeyFile header = getData(key, false);
     if (header==null) return;
     header.setActive(header.base(key), false);
-    ValueFile slot = getSlot(key);
+    DbFile slot = getSlot(key);
     if (slot!=null) releaseSlot(key);
   }
 
+  @Override
+  public void clear()
+  {
+    if (objectCache!=null) objectCache.clear();
+    super.clear();
+  }
+
   /**
    * Here value is exceptionally an array of bytes, not a long.
    */
@@ -130,42 +250,40 @@ public class ObjectMap extends DynamicMap
     throw new UnsupportedOperationException("Value is Object, not long");
   }
 
-  protected long[] serialize(Serializable object)
+  protected byte[] serializeToBytes(Serializable object)
   {
-    ByteArrayOutputStream baoStream = new ByteArrayOutputStream();
-    try
+    byte[] bytes = new byte[serializer.size(object)];
+    serializer.write(object, ByteBuffer.wrap(bytes));
+    return bytes;
+  }
+
+  /**
+   * Converts serialized bytes to the stored list: the count of bytes followed by the bytes packed 8 to a long,
+   * or one byte per long if the map is not packed
+   * @param bArray the bytes
+   * @return the list
+   */
+  protected long[] toStored(byte[] bArray)
+  {
+    if (!packed)
     {
-      ObjectOutputStream ooStream = new ObjectOutputStream(baoStream);
-      ooStream.writeUnshared(object);
-      ooStream.close();
-      baoStream.close();
-      byte[] bArray = baoStream.toByteArray();
       long[] lArray = new long[bArray.length];
       for (int i=0; i<bArray.length; i++) lArray[i] = bArray[i];
       return lArray;
     }
-    catch (IOException e)
-    {
-      throw new IllegalStateException(e);
-    }
+    long[] lArray = new long[1+(bArray.length+7)/8];
+    lArray[0] = bArray.length;
+    ByteBuffer buffer = ByteBuffer.allocate((lArray.length-1)*8);
+    buffer.put(bArray);
+    buffer.rewind();
+    buffer.asLongBuffer().get(lArray, 1, lArray.length-1);
+    return lArray;
   }
 
-  protected Serializable deSerialize(long[] lArray)
+  protected Serializable deSerialize(byte[] bArray)
   {
-    if (lArray==null) return null;
-    byte[] bArray = new byte[lArray.length];
-    for (int i=0; i<lArray.length; i++) bArray[i] = (byte)lArray[i];
-
-    ByteArrayInputStream bstream = new ByteArrayInputStream(bArray);
-    try
-    {
-      ObjectInputStream ostream = new ObjectInputStream(bstream);
-      return (Serializable) ostream.readUnshared();
-    }
-    catch (IOException | ClassNotFoundException e)
-    {
-      throw new IllegalStateException(e);
-    }
+    if (bArray==null) return null;
+    return serializer.read(ByteBuffer.wrap(bArray));
   }
 
   @Override
@@ -201,4 +319,126 @@ public class ObjectMap extends DynamicMap
   {
     throw new IllegalArgumentException("ObjectMap does not support indexing.");
   }
-}
\ No newline at end of file
+
+  /**
+   * Read cache of deserialized objects, a simplified W-TinyLFU.
+   * <p>
+   * New objects enter a small LRU window. An object evicted from the window is admitted to the main LRU segments only if
+   * it has been read more often than the object it would replace there. Read frequencies are estimated with a count-min sketch
+   * of 4-bit counters that are halved periodically, so that the cache adapts when the hot keys change.
+   * Objects that are read again in the main probation segment are promoted to the protected segment.
+   * Even a read reorders the segments and counts, so the cache is synchronized for concurrent readers of the map.
+   */
+  protected static class ObjectCache
+  {
+    protected static final int ROWS = 4;
+    protected static final long[] SEEDS = {0x9e3779b97f4a7c15l, 0xbf58476d1ce4e5b9l, 0x94d049bb133111ebl, 0xd6e8feb86659fd93l};
+
+    protected final int maxWindow;
+    protected final int maxProtected;
+    protected final int maxMain;
+    protected final LinkedHashMap<Long, Serializable> window = new LinkedHashMap<>(16, 0.75f, true);
+    protected final LinkedHashMap<Long, Serializable> probation = new LinkedHashMap<>(16, 0.75f, true);
+    protected final LinkedHashMap<Long, Serializable> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected final byte[] counters;
+    protected final int mask;
+    protected final int sampleSize;
+    protected int additions;
+
+    public ObjectCache(int maxObjects)
+    {
+      maxWindow = Math.max(1, maxObjects/100);
+      maxMain = Math.max(1, maxObjects-maxWindow);
+      maxProtected = maxMain*4/5;
+      int width = Integer.highestOneBit(Math.max(16, maxObjects)*2-1);
+      counters = new byte[ROWS*width];
+      mask = width-1;
+      sampleSize = 10*Math.max(16, maxObjects);
+    }
+
+    public synchronized Serializable get(long key)
+    {
+      increment(key);
+      Serializable object = window.get(key);
+      if (object!=null) return object;
+      object = protectedSegment.get(key);
+      if (object!=null) return object;
+      object = probation.remove(key);
+      if (object==null) return null;
+      protectedSegment.put(key, object);
+      if (protectedSegment.size()>maxProtected)
+      {
+        Map.Entry<Long, Serializable> eldest = eldest(protectedSegment);
+        protectedSegment.remove(eldest.getKey());
+        probation.put(eldest.getKey(), eldest.getValue());
+      }
+      return object;
+    }
+
+    public synchronized void put(long key, Serializable object)
+    {
+      window.put(key, object);
+      if (window.size()<=maxWindow) return;
+      Map.Entry<Long, Serializable> candidate = eldest(window);
+      window.remove(candidate.getKey());
+      if (probation.size()+protectedSegment.size()<maxMain)
+      {
+        probation.put(candidate.getKey(), candidate.getValue());
+        return;
+      }
+      LinkedHashMap<Long, Serializable> victims = probation.isEmpty() ? protectedSegment : probation;
+      Map.Entry<Long, Serializable> victim = eldest(victims);
+      if (frequency(candidate.getKey())<=frequency(victim.getKey())) return;
+      victims.remove(victim.getKey());
+      probation.put(candidate.getKey(), candidate.getValue());
+    }
+
+    public synchronized void remove(long key)
+    {
+      if (window.remove(key)!=null) return;
+      if (probation.remove(key)!=null) return;
+      protectedSegment.remove(key);
+    }
+
+    public synchronized void clear()
+    {
+      window.clear();
+      probation.clear();
+      protectedSegment.clear();
+      Arrays.fill(counters, (byte)0);
+      additions = 0;
+    }
+
+    protected static Map.Entry<Long, Serializable> eldest(LinkedHashMap<Long, Serializable> segment)
+    {
+      return segment.entrySet().iterator().next();
+    }
+
+    protected int index(long key, int row)
+    {
+      long hash = (key+row)*SEEDS[row];
+      hash ^= hash >>> 32;
+      return row*(mask+1)+((int)hash & mask);
+    }
+
+    protected int frequency(long key)
+    {
+      int frequency = Integer.MAX_VALUE;
+      for (int row=0; row<ROWS; row++) frequency = Math.min(frequency, counters[index(key, row)]);
+      return frequency;
+    }
+
+    protected void increment(long key)
+    {
+      for (int row=0; row<ROWS; row++)
+      {
+        int i = index(key, row);
+        if (counters[i]<15) counters[i]++;
+      }
+      if (++additions<sampleSize) return;
+      for (int i=0; i<counters.length; i++) counters[i] >>= 1;
+      additions /= 2;
+    }
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+package com.stremebase.map;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Converts the objects of an ObjectMap to bytes and back. Defined per map with {@link com.stremebase.base.Catalog#SERIALIZER}.
+ * <p>
+ * Objects are written straight into their value slots: the map asks for the size first, reserves the slot
+ * and then gives a view of the slot to write to. Reads likewise get a view of the slot, not a copy.
+ * Implementations need a public no-argument constructor. A map may be read by several threads at once, so any state
+ * kept from size() for the following write() has to be per thread.
+ * @author olli
+ */
+public interface ObjectSerializer
+{
+  /**
+   * Size of the serialized object, called right before write
+   * @param object the object
+   * @return size in bytes
+   */
+  int size(Serializable object);
+
+  /**
+   * Serializes the object
+   * @param object the object
+   * @param buffer where to write, with exactly size(object) bytes remaining
+   */
+  void write(Serializable object, ByteBuffer buffer);
+
+  /**
+   * Deserializes an object
+   * @param buffer the serialized object
+   * @return the object
+   */
+  Serializable read(ByteBuffer buffer);
+}
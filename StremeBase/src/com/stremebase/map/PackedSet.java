@@ -0,0 +1,240 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+package com.stremebase.map;
+
+import com.stremebase.base.DB;
+import com.stremebase.file.DbFile;
+
+
+/**
+ * The compressed slot format of sorted sets (see {@link com.stremebase.base.Catalog#COMPRESSEDSET}).
+ * <p>
+ * Entries are split into blocks of BLOCK entries. Values of a block are stored as bit-packed deltas from the previous value,
+ * attributes as bit-packed offsets from the smallest attribute of the block. If every entry has the same attribute,
+ * the attribute column is left out altogether.
+ * <p>
+ * Layout, in longs: entry count, the constant attribute (DB.NULL if attributes vary), a skip directory with
+ * the first value and the offset of each block, and the blocks. A block starts with the bit widths of
+ * deltas and attributes, followed by the smallest attribute (only if attributes vary) and the packed bits.
+ * <p>
+ * A packed set cannot be updated in place: there are no removed entries, sets are rewritten instead.
+ * For internal use only.
+ * @author olli
+ */
+public class PackedSet
+{
+  public static final int BLOCK = 128;
+
+  protected static final int pCount = 0;
+  protected static final int pAttribute = 1;
+  protected static final int pDirectory = 2;
+
+  /**
+   * Encodes sorted entries
+   * @param values ascending, distinct values
+   * @param attributes the attributes, none of which is DB.NULL
+   * @param count the count of entries
+   * @return the encoded set
+   */
+  public static long[] encode(long[] values, long[] attributes, int count)
+  {
+    int blocks = (count+BLOCK-1)/BLOCK;
+    boolean constant = true;
+    for (int i=1; i<count; i++) if (attributes[i]!=attributes[0]) constant = false;
+
+    int[] valueWidths = new int[blocks];
+    int[] attributeWidths = new int[blocks];
+    long[] attributeBases = new long[blocks];
+    int length = pDirectory+blocks*2;
+
+    for (int b=0; b<blocks; b++)
+    {
+      int from = b*BLOCK;
+      int to = Math.min(count, from+BLOCK);
+      long maxDelta = 0;
+      for (int i=from+1; i<to; i++) maxDelta |= values[i]-values[i-1];
+      valueWidths[b] = width(maxDelta);
+      if (!constant)
+      {
+        long attributeBase = attributes[from];
+        for (int i=from+1; i<to; i++) if (attributes[i]<attributeBase) attributeBase = attributes[i];
+        long maxOffset = 0;
+        for (int i=from; i<to; i++) maxOffset |= attributes[i]-attributeBase;
+        attributeBases[b] = attributeBase;
+        attributeWidths[b] = width(maxOffset);
+        length++;
+      }
+      length += 1+words((long)(to-from-1)*valueWidths[b])+words((long)(to-from)*attributeWidths[b]);
+    }
+
+    long[] result = new long[length];
+    result[pCount] = count;
+    result[pAttribute] = count>0 && constant ? attributes[0] : DB.NULL;
+    int position = pDirectory+blocks*2;
+
+    for (int b=0; b<blocks; b++)
+    {
+      int from = b*BLOCK;
+      int to = Math.min(count, from+BLOCK);
+      result[pDirectory+b*2] = values[from];
+      result[pDirectory+b*2+1] = position;
+      result[position++] = valueWidths[b] | (attributeWidths[b] << 8);
+      if (!constant) result[position++] = attributeBases[b];
+
+      long bit = (long)position*64;
+      for (int i=from+1; i<to; i++, bit+=valueWidths[b]) pack(result, bit, valueWidths[b], values[i]-values[i-1]);
+      position += words((long)(to-from-1)*valueWidths[b]);
+
+      bit = (long)position*64;
+      if (!constant) for (int i=from; i<to; i++, bit+=attributeWidths[b]) pack(result, bit, attributeWidths[b], attributes[i]-attributeBases[b]);
+      position += words((long)(to-from)*attributeWidths[b]);
+    }
+    return result;
+  }
+
+  /**
+   * Count of entries in an encoded set
+   * @param file the file
+   * @param base the position of the set
+   * @return the count
+   */
+  public static int count(DbFile file, long base)
+  {
+    return (int)file.read(base+pCount);
+  }
+
+  /**
+   * The first value of a block
+   * @param file the file
+   * @param base the position of the set
+   * @param block the block
+   * @return the value
+   */
+  public static long first(DbFile file, long base, int block)
+  {
+    return file.read(base+pDirectory+block*2);
+  }
+
+  /**
+   * Finds, by binary search of the skip directory, the last block whose first value is smaller than the target
+   * @param file the file
+   * @param base the position of the set
+   * @param fromBlock the block to start from
+   * @param target the target
+   * @return the block, or fromBlock if its first value is not smaller
+   */
+  public static int findBlock(DbFile file, long base, int fromBlock, long target)
+  {
+    int blocks = (count(file, base)+BLOCK-1)/BLOCK;
+    int low = fromBlock;
+    int high = blocks;
+    while (low+1<high)
+    {
+      int middle = (low+high) >>> 1;
+      if (first(file, base, middle)<target) low = middle; else high = middle;
+    }
+    return low;
+  }
+
+  /**
+   * Decodes a block
+   * @param file the file
+   * @param base the position of the set
+   * @param block the block
+   * @param values receives the values, length at least BLOCK
+   * @param attributes receives the attributes, length at least BLOCK
+   * @return count of entries in the block
+   */
+  public static int decode(DbFile file, long base, int block, long[] values, long[] attributes)
+  {
+    int count = Math.min(BLOCK, count(file, base)-block*BLOCK);
+    long constantAttribute = file.read(base+pAttribute);
+    long position = base+file.read(base+pDirectory+block*2+1);
+    long widths = file.read(position++);
+    int valueWidth = (int)(widths & 0xff);
+    int attributeWidth = (int)((widths >>> 8) & 0xff);
+
+    long attributeBase = constantAttribute;
+    if (constantAttribute==DB.NULL) attributeBase = file.read(position++);
+
+    long value = first(file, base, block);
+    values[0] = value;
+    long bit = 0;
+    for (int i=1; i<count; i++, bit+=valueWidth)
+    {
+      value += unpack(file, position, bit, valueWidth);
+      values[i] = value;
+    }
+    position += words((long)(count-1)*valueWidth);
+
+    bit = 0;
+    for (int i=0; i<count; i++, bit+=attributeWidth)
+      attributes[i] = constantAttribute!=DB.NULL ? constantAttribute : attributeBase + unpack(file, position, bit, attributeWidth);
+    return count;
+  }
+
+  /**
+   * Finds the attribute of a value
+   * @param file the file
+   * @param base the position of the set
+   * @param value the value
+   * @return the attribute, or DB.NULL if the value is not in the set
+   */
+  public static long attribute(DbFile file, long base, long value)
+  {
+    int count = count(file, base);
+    if (count==0 || first(file, base, 0)>value) return DB.NULL;
+    int block = value==Long.MAX_VALUE ? (count-1)/BLOCK : findBlock(file, base, 0, value+1);
+    long[] values = new long[BLOCK];
+    long[] attributes = new long[BLOCK];
+    count = decode(file, base, block, values, attributes);
+    int low = 0;
+    int high = count-1;
+    while (low<=high)
+    {
+      int middle = (low+high) >>> 1;
+      if (values[middle]<value) low = middle+1;
+      else if (values[middle]>value) high = middle-1;
+      else return attributes[middle];
+    }
+    return DB.NULL;
+  }
+
+  protected static int width(long max)
+  {
+    return 64-Long.numberOfLeadingZeros(max);
+  }
+
+  protected static int words(long bits)
+  {
+    return (int)((bits+63) >>> 6);
+  }
+
+  protected static void pack(long[] array, long bit, int width, long value)
+  {
+    if (width==0) return;
+    int index = (int)(bit >>> 6);
+    int shift = (int)(bit & 63);
+    array[index] |= value << shift;
+    if (shift+width>64) array[index+1] |= value >>> (64-shift);
+  }
+
+  protected static long unpack(DbFile file, long position, long bit, int width)
+  {
+    if (width==0) return 0;
+    long index = position+(bit >>> 6);
+    int shift = (int)(bit & 63);
+    long result = file.read(index) >>> shift;
+    if (shift+width>64) result |= file.read(index+1) << (64-shift);
+    return width==64 ? result : result & ((1l << width)-1);
+  }
+}
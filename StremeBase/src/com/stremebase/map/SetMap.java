@@ -11,18 +11,25 @@
 
 package com.stremebase.map;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import com.stremebase.base.Catalog;
 import com.stremebase.base.DB;
 import com.stremebase.base.DynamicMap;
+import com.stremebase.base.HeavyHitters;
 import com.stremebase.file.FileManager.ValueSlot;
 import com.stremebase.file.KeyFile;
-import com.stremebase.file.ValueFile;
+import com.stremebase.file.DbFile;
+import com.stremebase.util.ExpandingArray;
+import com.stremebase.util.LongLongConsumer;
+import com.stremebase.util.SkippableIterator;
+import com.stremebase.util.Streams;
 
 
 /**
@@ -35,6 +42,9 @@ import com.stremebase.file.ValueFile;
  * SetMap.MULTISET: A bag - occurrences are counted
  * <p>
  * SetMap.ATTRIBUTEDSET: Values can be associated with an arbitrary tag (for example type or weight of value)
+ * <p>
+ * Writes are buffered in a cache and reads merge the cached entries with the stored set, so the cache is written
+ * to disk only when it fills up or on {@link #flush()}. Queries that use an index flush the cache first.
  * @author olli
  */
 public class SetMap extends DynamicMap
@@ -55,13 +65,39 @@ public class SetMap extends DynamicMap
   public static final byte ATTRIBUTEDSET = 3;
 
   protected byte type;
+  protected boolean compressed;
   protected SetCache setCache;
   protected int maxCachedSetValueEntries;
   protected long[] overwriterCache;
 
+  protected static final int INITIALCACHEDSETENTRIES = 8;
+
   protected static final long NOTWRITTEN = DB.NULL;
   protected static final long WRITTEN = 0;
 
+  /**
+   * The upper half of the length field of a node counts the removed entries (tombstones) that are still in the slot
+   */
+  protected static final int TOMBSTONESHIFT = 32;
+
+  /**
+   * How many queued sets are compacted whenever a cached set is written
+   */
+  protected static final int COMPACTIONSTEP = 1;
+
+  /**
+   * Number of counters in the sketch behind {@link #topKValues(int)}
+   */
+  public static int HEAVYHITTERS = 1024;
+
+  protected int tombstonePercent;
+  protected HeavyHitters heavyHitters;
+  protected final ExpandingArray compactionQueue = new ExpandingArray();
+
+  protected DB db;
+  protected SetMap posAttributeIndex;
+  protected SetMap negAttributeIndex;
+
   /**
    * SetEntry contains not only key and value, but also an attribute
    * for MULTISETs, the attribute is the count of values
@@ -102,23 +138,103 @@ public class SetMap extends DynamicMap
   {
     super.initialize(mapName, catalog);
     type = (byte) catalog.getProperty(Catalog.SETTYPE, this);
-    setCache = new SetCache(this, (int) catalog.getProperty(Catalog.MAXCACHEDSETSIZE, this));
+    compressed = Boolean.TRUE.equals(catalog.getProperty(Catalog.COMPRESSEDSET, this));
+    setCache = new SetCache(this, (int) catalog.getProperty(Catalog.MAXCACHEDSETSIZE, this), ((Number) catalog.getProperty(Catalog.MAXCACHEDSETBYTES, this)).longValue());
     maxCachedSetValueEntries = (int) catalog.getProperty(Catalog.MAXCACHEDSETVALUEENTRIES, this);
     overwriterCache = new long[2+maxCachedSetValueEntries*2];
+    tombstonePercent = (int) catalog.getProperty(Catalog.TOMBSTONEPERCENT, this);
   }
 
   @Override
   public void flush()
   {
     setCache.flushAll();
+    compact(compactionQueue.length);
     super.flush();
+    if (posAttributeIndex!=null) posAttributeIndex.flush();
+    if (negAttributeIndex!=null) negAttributeIndex.flush();
   }
 
   @Override
-  protected void addIndex(DB db, byte indexType)
+  public void close()
+  {
+    super.close();
+    if (posAttributeIndex!=null) posAttributeIndex.close();
+    if (negAttributeIndex!=null) negAttributeIndex.close();
+  }
+
+  /**
+   * Adds an index from attributes to keys, used by attributeQuery and attributeUnionQuery
+   * @param db the database
+   */
+  public void addAttributeIndex(DB db)
   {
+    if (isAttributeIndexed()) return;
+    if (type == SET) throw new UnsupportedOperationException("Only ATTRIBUTEDSETs and MULTISETs have attributes");
+    this.db = db;
     setCache.flushAll();
-    super.addIndex(db, indexType);
+    posAttributeIndex = attributeIndexMap(mapName+"_posIndex_attr");
+    if (db.catalog.mapExistsOnDisk(mapName+"_negIndex_attr")) negAttributeIndex = attributeIndexMap(mapName+"_negIndex_attr");
+    if (isEmpty() || !posAttributeIndex.isEmpty() || negAttributeIndex!=null) return;
+    keys().forEach(key -> entries(key).forEach(entry -> indexAttribute(key, entry.attribute, 1)));
+  }
+
+  /**
+   * Whether attributes are indexed
+   * @return true if they are
+   */
+  public boolean isAttributeIndexed()
+  {
+    return posAttributeIndex!=null;
+  }
+
+  protected SetMap attributeIndexMap(String name)
+  {
+    if (!db.catalog.mapExistsOnDisk(name)) db.defineMap(name, SetMap.class, db.props().add(Catalog.PERSISTED, persisted).add(Catalog.SETTYPE, MULTISET).build(), false);
+    return db.getMap(name);
+  }
+
+  /**
+   * Counts how many values of a key have the attribute. A key whose count drops to zero is removed.
+   */
+  protected void indexAttribute(long key, long attribute, long count)
+  {
+    if (attribute==DB.NULL) return;
+    SetMap index = posAttributeIndex;
+    if (attribute<0)
+    {
+      if (negAttributeIndex==null) negAttributeIndex = attributeIndexMap(mapName+"_negIndex_attr");
+      index = negAttributeIndex;
+      attribute = -attribute;
+    }
+    if (count<0 && index.getAttribute(attribute, key)+count<=0) index.removeValue(attribute, key);
+    else index.put(attribute, key, count);
+  }
+
+  protected LongStream attributeIndexKeys(long lowestAttribute, long highestAttribute)
+  {
+    LongStream result = LongStream.empty();
+    if (highestAttribute>=0) result = posAttributeIndex.keys(Math.max(0, lowestAttribute), highestAttribute).flatMap(attribute -> posAttributeIndex.values(attribute));
+    if (lowestAttribute<0 && negAttributeIndex!=null)
+      result = LongStream.concat(result, negAttributeIndex.keys(highestAttribute>=0 ? 1 : -highestAttribute, lowestAttribute==DB.MIN_VALUE ? DB.MAX_VALUE : -lowestAttribute).flatMap(attribute -> negAttributeIndex.values(attribute)));
+    return result.distinct().sorted();
+  }
+
+  @Override
+  protected void addIndex(DB db, byte indexType, boolean online)
+  {
+    setCache.flushAll();
+    super.addIndex(db, indexType, online);
+  }
+
+  /**
+   * Reads only the stored set, so that an online index build never flushes the cache.
+   * Cached entries get indexed when they are written.
+   */
+  @Override
+  protected LongStream indexedValues(long key)
+  {
+    return storedValues(key);
   }
 
   @Override
@@ -137,8 +253,9 @@ public class SetMap extends DynamicMap
   public long getValueCount(long key)
   {
     if (key==DB.NULL) return 0;
-    setCache.flush(key);
-    return super.getValueCount(key)/2;
+    long[] cached = setCache.get(key);
+    if (cached==null || cached[0]==0) return new SlotIterator(key).entries;
+    return merged(key, cached).length/2;
   }
 
   /**
@@ -168,7 +285,7 @@ public class SetMap extends DynamicMap
     if (set!=null)
     {
       int pos = findPosition(set, (int)set[0], value);
-      if (pos<=set[0])
+      if (pos<=set[0] && set[pos]==value)
       {
         if (set[pos+1] == DB.NULL) return DB.NULL;
         if (type!=MULTISET) return set[pos+1];
@@ -192,27 +309,57 @@ public class SetMap extends DynamicMap
    */
   public Stream<SetEntry> entries(long key)
   {
-    setCache.flush(key);
-
-    final byte[] index = new byte[1];
-    index[0] = 0;
-    final long[] entry = new long[2];
+    long[] cached = setCache.get(key);
+    if (cached==null || cached[0]==0) return storedEntries(key);
+    final long[] merged = merged(key, cached);
+    return IntStream.range(0, merged.length/2).filter(i -> merged[i*2+1]!=DB.NULL).mapToObj(i -> new SetEntry(key, merged[i*2], merged[i*2+1]));
+  }
 
-    return super.values(key, false).filter(value ->
+  /**
+   * Calls the action for the value and attribute of each entry of a key, in ascending order of values.
+   * A tight loop over the stored set when the set has no cached writes.
+   * @param key the key
+   * @param action the action
+   */
+  public void forEachEntry(long key, LongLongConsumer action)
+  {
+    long[] cached = setCache.get(key);
+    if (cached!=null && cached[0]!=0)
     {
-      if (index[0]==0)
-      {
-        entry[0] = value;
-        index[0] = 1;
-        return false;
-      }
-      else
-      {
-        entry[1] = value;
-        index[0] = 0;
-        return value != DB.NULL ? true : false;
-      }
-    }).mapToObj(value -> {return new SetEntry(key, entry[0], entry[1]);});
+      long[] merged = merged(key, cached);
+      for (int i=0; i<merged.length; i+=2) if (merged[i+1]!=DB.NULL) action.accept(merged[i], merged[i+1]);
+      return;
+    }
+    if (compressed)
+    {
+      SlotIterator slot = new SlotIterator(key);
+      for (int i=0; i<slot.entries; i++) action.accept(slot.value(i), slot.attribute(i));
+      return;
+    }
+    KeyFile header = getData(key, false);
+    if (header==null) return;
+    int base = header.base(key);
+    if (header.read(base)==0) return;
+    DbFile file = slotFile(header, base);
+    int position = slotPosition(header, base);
+    int end = position+(int)header.read(base+DynamicMap.pLength);
+    for (; position<end; position+=2)
+    {
+      long attribute = file.read(position+1);
+      if (attribute!=DB.NULL) action.accept(file.read(position), attribute);
+    }
+  }
+
+  @Override
+  public void forEachValue(long key, LongConsumer action)
+  {
+    forEachEntry(key, (value, attribute) -> action.accept(value));
+  }
+
+  protected Stream<SetEntry> storedEntries(long key)
+  {
+    final SlotIterator slot = new SlotIterator(key);
+    return IntStream.range(0, slot.entries).filter(i -> slot.attribute(i)!=DB.NULL).mapToObj(i -> new SetEntry(key, slot.value(i), slot.attribute(i)));
   }
 
   /**
@@ -221,26 +368,81 @@ public class SetMap extends DynamicMap
   @Override
   public LongStream values(long key)
   {
-    setCache.flush(key);
+    return Streams.stream(valueIterator(key));
+  }
 
-    final boolean[] isValue = new boolean[1];
-    isValue[0] = true;
-    final long[] theValue = new long[1];
+  /**
+   * The values associated with a key as an ascending iterator that can skip forward by exponential and binary search.
+   * Used for intersecting sets, see {@link com.stremebase.util.Streams#intersection(SkippableIterator...)}
+   * @param key the key
+   * @return the iterator
+   */
+  public SkippableIterator valueIterator(long key)
+  {
+    long[] cached = setCache.get(key);
+    if (cached==null || cached[0]==0) return new SlotIterator(key);
+    return new MergingIterator(key, Arrays.copyOf(cached, (int)cached[0]+2));
+  }
 
-    return super.values(key, false).filter(value ->
+  protected LongStream storedValues(long key)
+  {
+    return Streams.stream(new SlotIterator(key));
+  }
+
+  /**
+   * Merges the cached entries of a set with the stored ones.
+   * Cached entries that remove a value not stored are left out, stored removed values are kept with DB.NULL attribute.
+   * @param key the key
+   * @param cached the cached set
+   * @return value-attribute pairs, sorted by value
+   */
+  protected long[] merged(long key, long[] cached)
+  {
+    final SlotIterator slot = new SlotIterator(key);
+    long[] result = new long[(int)(slot.entries*2+cached[0])];
+    int r = 0;
+    int cachePos = 2;
+    final int cacheEnd = (int)cached[0]+2;
+
+    for (int i=0; i<slot.entries; i++)
     {
-      if (isValue[0])
+      long value = slot.value(i);
+      long attribute = slot.attribute(i);
+
+      for (; cachePos<cacheEnd && cached[cachePos]<value; cachePos+=2)
       {
-        theValue[0] = value;
-        isValue[0] = false;
-        return false;
+        if (cached[cachePos+1]==DB.NULL) continue;
+        result[r++] = cached[cachePos];
+        result[r++] = cached[cachePos+1];
       }
-      else
+
+      if (cachePos<cacheEnd && cached[cachePos]==value)
       {
-        isValue[0] = true;
-        return value != DB.NULL ? true : false;
+        attribute = combine(attribute, cached[cachePos+1]);
+        cachePos+=2;
       }
-    }).map(value -> {return theValue[0];});
+      result[r++] = value;
+      result[r++] = attribute;
+    }
+
+    for (; cachePos<cacheEnd; cachePos+=2)
+    {
+      if (cached[cachePos+1]==DB.NULL) continue;
+      result[r++] = cached[cachePos];
+      result[r++] = cached[cachePos+1];
+    }
+    return r==result.length ? result : Arrays.copyOf(result, r);
+  }
+
+  /**
+   * The attribute that results when a new attribute is written over a stored one
+   */
+  protected long combine(long storedAttribute, long newAttribute)
+  {
+    if (type!=MULTISET) return newAttribute;
+    if (storedAttribute==DB.NULL) return newAttribute;
+    if (newAttribute==DB.NULL) return DB.NULL;
+    return storedAttribute+newAttribute;
   }
 
   /*public LongStream attributes(long key)
@@ -258,11 +460,16 @@ public class SetMap extends DynamicMap
   {
     if (key<0) throw new IllegalArgumentException("Negative keys are not supported ("+key+")");
     if (value==DB.NULL) throw new IllegalArgumentException("Value cannot be DB.NULL");
+    if (heavyHitters!=null) countHit(key, value, attribute);
+    cache(key, value, attribute);
+  }
 
+  protected void cache(long key, long value, long attribute)
+  {
     long[] set = setCache.get(key);
     if (set==null)
     {
-      set = new long[2+maxCachedSetValueEntries*2];
+      set = new long[2+Math.min(maxCachedSetValueEntries, INITIALCACHEDSETENTRIES)*2];
       setCache.put(key, set);
     }
 
@@ -281,7 +488,7 @@ public class SetMap extends DynamicMap
       set[0]+=2;
       set[(int)set[0]] = value;
       set[(int)(set[0]+1)] = attribute;
-      if (set[0]+2==set.length) setCache.flush(key);
+      if (set[0]+2==set.length) full(key, set);
       return;
     }
 
@@ -289,6 +496,13 @@ public class SetMap extends DynamicMap
 
     if (set[pos]==value)
     {
+      if (type==MULTISET && set[pos+1]==DB.NULL && attribute!=DB.NULL)
+      {
+        // a count cannot be added to a removal, the removal has to be written first
+        setCache.flush(key);
+        cache(key, value, attribute);
+        return;
+      }
       if (attribute == DB.NULL) set[pos+1] = attribute;
       else set[pos+1] = type == MULTISET ? set[pos+1] + attribute : attribute;
       return;
@@ -299,7 +513,17 @@ public class SetMap extends DynamicMap
     set[0]+=2;
     set[pos] = value;
     set[pos+1]=attribute;
-    if (set[0]+2==set.length) setCache.flush(key);
+    if (set[0]+2==set.length) full(key, set);
+  }
+
+  /**
+   * A cached set ran out of space: it is grown, or written to disk if it already has the maximum size
+   */
+  protected void full(long key, long[] set)
+  {
+    int maxLength = 2+maxCachedSetValueEntries*2;
+    if (set.length<maxLength) setCache.put(key, Arrays.copyOf(set, Math.min(set.length*2-2, maxLength)));
+    else setCache.flush(key);
   }
 
   protected int findPosition(long[] array, int last, long element)
@@ -343,6 +567,51 @@ public class SetMap extends DynamicMap
     for (long[] entry: entries) put(entry[0], entry[1], entry[2]);
   }
 
+  /**
+   * Puts many values to a key's set at once. The values are merged with the stored set in one pass,
+   * which is much faster than putting them one by one.
+   * @param key the key
+   * @param sortedValues the values in ascending order, without duplicates
+   * @param attributes the attributes (for MULTISETs, the counts to add), or null for 1
+   */
+  public void putAll(long key, long[] sortedValues, long[] attributes)
+  {
+    if (key<0) throw new IllegalArgumentException("Negative keys are not supported ("+key+")");
+    if (attributes!=null && attributes.length!=sortedValues.length) throw new IllegalArgumentException("There are "+sortedValues.length+" values but "+attributes.length+" attributes");
+    if (sortedValues.length==0) return;
+
+    long[] entries = new long[2+sortedValues.length*2];
+    entries[0] = sortedValues.length*2;
+    for (int i=0; i<sortedValues.length; i++)
+    {
+      if (sortedValues[i]==DB.NULL) throw new IllegalArgumentException("Value cannot be DB.NULL");
+      if (i>0 && sortedValues[i]<=sortedValues[i-1]) throw new IllegalArgumentException("Values are not sorted and distinct at index "+i);
+      entries[2+i*2] = sortedValues[i];
+      entries[3+i*2] = attributes==null ? 1 : attributes[i];
+      if (heavyHitters!=null) countHit(key, entries[2+i*2], entries[3+i*2]);
+    }
+    setCache.flush(key);
+    rewrite(key, entries);
+  }
+
+  /**
+   * Bulk put for many keys, see {@link #putAll(long, long[], long[])}
+   * @param keys the keys, entries of a key must be consecutive
+   * @param values the values, ascending and distinct within a key
+   * @param attributes the attributes, or null for 1
+   */
+  public void putAll(long[] keys, long[] values, long[] attributes)
+  {
+    if (keys.length!=values.length || (attributes!=null && attributes.length!=values.length)) throw new IllegalArgumentException("keys, values and attributes must be equally long");
+    int from = 0;
+    for (int i=1; i<=keys.length; i++)
+    {
+      if (i<keys.length && keys[i]==keys[from]) continue;
+      putAll(keys[from], Arrays.copyOfRange(values, from, i), attributes==null ? null : Arrays.copyOfRange(attributes, from, i));
+      from = i;
+    }
+  }
+
   /**
    * Removes a value from set. For MULTISET, this means decreasing count by one.
    * @param key the key
@@ -374,7 +643,9 @@ public class SetMap extends DynamicMap
   @Override
   public void remove(long key)
   {
+    if (heavyHitters!=null) forEachEntry(key, (value, attribute) -> heavyHitters.add(value, -attribute));
     setCache.remove(key);
+    if (isAttributeIndexed()) storedEntries(key).forEach(entry -> indexAttribute(key, entry.attribute, -1));
     super.remove(key);
   }
 
@@ -388,13 +659,21 @@ public class SetMap extends DynamicMap
     if (header!=null)
     {
       overWrite(key, cached);
-      if (cached[0] == DB.NULL) return;
+      if (cached[0] == DB.NULL)
+      {
+        compact(COMPACTIONSTEP);
+        return;
+      }
     }
 
-    header = getData(key, true);
-    int base = header.base(key);
     final long oldLength = super.getValueCount(key);
-    header.setActive(base, true);
+    if (compressed || cached[0]+oldLength<=inlineCapacity)
+    {
+      rewrite(key, cached);
+      return;
+    }
+
+    header = getData(key, true);
 
     final ValueSlot newSlot = fileManager.getFreeSlot(mapGetter, cached[0]+oldLength+2);
 
@@ -425,6 +704,7 @@ public class SetMap extends DynamicMap
           newPos+=2;
           newLength++;
           if (isIndexed()) indexer.index(key, cached[cachePos]);
+          if (isAttributeIndexed()) indexAttribute(key, cached[cachePos+1], 1);
           cachePos+=2;
         }
 
@@ -445,10 +725,89 @@ public class SetMap extends DynamicMap
         newPos+=2;
         newLength++;
         if (isIndexed()) indexer.index(key, cached[cachePos]);
+        if (isAttributeIndexed()) indexAttribute(key, cached[cachePos+1], 1);
       }
       cachePos+=2;
     }
     createHeader(key, newLength*2, newSlot);
+    compact(COMPACTIONSTEP);
+  }
+
+  /**
+   * Merges entries with the stored set into a new slot in one pass. Removed stored entries are dropped.
+   * @param key the key
+   * @param cached the entries, in the format of cached sets
+   */
+  protected void rewrite(long key, long[] cached)
+  {
+    final SlotIterator slot = new SlotIterator(key);
+    final int cacheEnd = (int)cached[0]+2;
+    long[] values = new long[slot.entries+(int)cached[0]/2];
+    long[] attributes = new long[values.length];
+    int count = 0;
+    int cachePos = 2;
+
+    for (int i=0; i<slot.entries; i++)
+    {
+      long value = slot.value(i);
+      long attribute = slot.attribute(i);
+      for (; cachePos<cacheEnd && cached[cachePos]<value; cachePos+=2) count = appendCached(key, cached[cachePos], cached[cachePos+1], values, attributes, count);
+
+      if (cachePos<cacheEnd && cached[cachePos]==value && attribute==DB.NULL)
+      {
+        count = appendCached(key, value, cached[cachePos+1], values, attributes, count);
+        cachePos+=2;
+        continue;
+      }
+      if (cachePos<cacheEnd && cached[cachePos]==value)
+      {
+        long stored = combine(attribute, cached[cachePos+1]);
+        cachePos+=2;
+        if (isAttributeIndexed())
+        {
+          indexAttribute(key, attribute, -1);
+          indexAttribute(key, stored, 1);
+        }
+        if (stored==DB.NULL)
+        {
+          if (isIndexed()) indexer.unIndex(key, value);
+          continue;
+        }
+        attribute = stored;
+      }
+      if (attribute==DB.NULL) continue;
+      values[count] = value;
+      attributes[count++] = attribute;
+    }
+    for (; cachePos<cacheEnd; cachePos+=2) count = appendCached(key, cached[cachePos], cached[cachePos+1], values, attributes, count);
+
+    if (compressed)
+    {
+      long[] packed = PackedSet.encode(values, attributes, count);
+      ValueSlot newSlot = getFreeSlot(key, packed.length);
+      writeData(newSlot, packed);
+      createHeader(key, packed.length, newSlot);
+      return;
+    }
+
+    ValueSlot newSlot = getFreeSlot(key, Math.max(2, count*2));
+    long newPos = newSlot.slotPosition;
+    for (int i=0; i<count; i++)
+    {
+      newSlot.valueFile.write(newPos++, values[i]);
+      newSlot.valueFile.write(newPos++, attributes[i]);
+    }
+    createHeader(key, count*2, newSlot);
+  }
+
+  protected int appendCached(long key, long value, long attribute, long[] values, long[] attributes, int count)
+  {
+    if (attribute==DB.NULL) return count;
+    values[count] = value;
+    attributes[count] = attribute;
+    if (isIndexed()) indexer.index(key, value);
+    if (isAttributeIndexed()) indexAttribute(key, attribute, 1);
+    return count+1;
   }
 
   protected void overWrite(long key, long[] cached)
@@ -474,11 +833,20 @@ public class SetMap extends DynamicMap
     KeyFile header = getData(key, false);
     if (header==null) return DB.NULL;
     int base = header.base(key);
+    if (header.read(base)==0) return DB.NULL;
     int end = (int)header.read(base+DynamicMap.pLength)-1;
     if (end==-1) return DB.NULL;
-    int valueBase = (int)header.read(base+DynamicMap.pSlotFilePosition);
+    int valueBase = slotPosition(header, base);
+
+    DbFile file = slotFile(header, base);
 
-    ValueFile file = fileManager.getValueFile(mapGetter, header.read(base+DynamicMap.pSlotFileId));
+    if (compressed)
+    {
+      long attribute = PackedSet.attribute(file, valueBase, value);
+      if (!write) return attribute;
+      if (type!=MULTISET && attribute!=DB.NULL && newAttribute==attribute) return WRITTEN;
+      return NOTWRITTEN;
+    }
 
     int start = 0;
     int test;
@@ -499,13 +867,23 @@ public class SetMap extends DynamicMap
         if (DB.NULL == newAttribute && DB.NULL == attribute) return WRITTEN;
         if (type!=MULTISET && newAttribute == attribute) return WRITTEN;
 
-        if (type!=MULTISET) file.write(valueBase+test+1, newAttribute);
-        else if (attribute==DB.NULL) file.write(valueBase+test+1, newAttribute);
-        else if (newAttribute==DB.NULL) file.write(valueBase+test+1, DB.NULL);
-        else file.write(valueBase+test+1, attribute+newAttribute);
+        long stored = combine(attribute, newAttribute);
+        file.write(valueBase+test+1, stored);
+
+        if (stored == DB.NULL) countTombstones(key, header, base, 1);
+        else if (attribute == DB.NULL) countTombstones(key, header, base, -1);
 
-        if (isIndexed()) if (newAttribute == DB.NULL) indexer.unIndex(key, attribute);
-        else indexer.index(key, newAttribute);
+        if (isIndexed())
+        {
+          if (stored == DB.NULL) indexer.unIndex(key, value);
+          else if (attribute == DB.NULL) indexer.index(key, value);
+        }
+
+        if (isAttributeIndexed())
+        {
+          indexAttribute(key, attribute, -1);
+          indexAttribute(key, stored, 1);
+        }
 
         return WRITTEN;
       }
@@ -516,6 +894,118 @@ public class SetMap extends DynamicMap
     return NOTWRITTEN;
   }
 
+  /**
+   * The entries of a key with the largest attributes. For MULTISETs, the most frequent values of the key.
+   * @param key the key
+   * @param k how many
+   * @return the entries, largest attribute first
+   */
+  public Stream<SetEntry> topK(long key, int k)
+  {
+    if (type == SET) throw new UnsupportedOperationException("Only ATTRIBUTEDSETs and MULTISETs have attributes");
+    if (k<1) return Stream.empty();
+    PriorityQueue<SetEntry> top = new PriorityQueue<>(k+1);
+    entries(key).forEach(entry ->
+    {
+      if (top.size()<k) top.add(entry);
+      else if (entry.attribute>top.peek().attribute)
+      {
+        top.poll();
+        top.add(entry);
+      }
+    });
+    SetEntry[] result = top.toArray(new SetEntry[top.size()]);
+    Arrays.sort(result, (e1, e2) -> e2.compareTo(e1));
+    return Arrays.stream(result);
+  }
+
+  /**
+   * The most frequent values of a MULTISET over all keys, using a heavy-hitters sketch with HEAVYHITTERS counters.
+   * The sketch is built by scanning the map on first call and maintained incrementally after that.
+   * The counts are exact as long as there are at most HEAVYHITTERS distinct values, otherwise they may be overestimated.
+   * @param k how many, at most HEAVYHITTERS (unless the sketch is rebuilt with more counters)
+   * @return entries with key DB.NULL, the value and its total count, most frequent first
+   */
+  public Stream<SetEntry> topKValues(int k)
+  {
+    if (type != MULTISET) throw new UnsupportedOperationException("Only MULTISETs count values");
+    if (heavyHitters==null || heavyHitters.getCapacity()<k)
+    {
+      HeavyHitters sketch = new HeavyHitters(Math.max(HEAVYHITTERS, k));
+      keys().forEach(key -> entries(key).forEach(entry -> sketch.add(entry.value, entry.attribute)));
+      heavyHitters = sketch;
+    }
+    return LongStream.of(heavyHitters.top(k)).mapToObj(value -> new SetEntry(DB.NULL, value, heavyHitters.getCount(value)));
+  }
+
+  protected void countHit(long key, long value, long attribute)
+  {
+    if (attribute!=DB.NULL) heavyHitters.add(value, attribute);
+    else
+    {
+      long count = getAttribute(key, value);
+      if (count!=DB.NULL) heavyHitters.add(value, -count);
+    }
+  }
+
+  /**
+   * Count of removed entries that still occupy the stored set of a key. They are dropped when the set is rewritten.
+   * @param key the key
+   * @return the count
+   */
+  public long getRemovedCount(long key)
+  {
+    KeyFile header = getData(key, false);
+    if (header==null) return 0;
+    int base = header.base(key);
+    if (header.read(base)==0) return 0;
+    return header.read(base+DynamicMap.pLength) >>> TOMBSTONESHIFT;
+  }
+
+  /**
+   * Adjusts the tombstone count of a key and queues the set for compaction when the removed entries exceed Catalog.TOMBSTONEPERCENT
+   */
+  protected void countTombstones(long key, KeyFile header, int base, int change)
+  {
+    long lengthField = header.read(base+DynamicMap.pLength);
+    long entries = (int)lengthField/2;
+    long tombstones = (lengthField >>> TOMBSTONESHIFT) + change;
+    if (tombstones<0) tombstones = 0;
+    header.write(base+DynamicMap.pLength, (tombstones << TOMBSTONESHIFT) | (lengthField & 0xffffffffl));
+    if (change>0 && tombstones*100>entries*tombstonePercent && (tombstones-1)*100<=entries*tombstonePercent) compactionQueue.add(key);
+  }
+
+  /**
+   * Rewrites queued sets without their removed entries
+   * @param maxSets how many sets to compact at most
+   */
+  protected void compact(int maxSets)
+  {
+    while (maxSets-->0 && compactionQueue.length>0)
+    {
+      long key = compactionQueue.get(--compactionQueue.length);
+      KeyFile header = getData(key, false);
+      if (header==null) continue;
+      int base = header.base(key);
+      if (header.read(base)==0) continue;
+      long tombstones = getRemovedCount(key);
+      long entries = (int)header.read(base+DynamicMap.pLength)/2;
+      if (tombstones==0 || tombstones*100<=entries*tombstonePercent) continue;
+
+      SlotIterator slot = new SlotIterator(key);
+      ValueSlot newSlot = getFreeSlot(key, Math.max(2, (entries-tombstones)*2));
+      long newPos = newSlot.slotPosition;
+      for (int i=0; i<slot.entries; i++)
+      {
+        long attribute = slot.attribute(i);
+        if (attribute==DB.NULL) continue;
+        newSlot.valueFile.write(newPos++, slot.value(i));
+        newSlot.valueFile.write(newPos++, attribute);
+      }
+      createHeader(key, newPos-newSlot.slotPosition, newSlot);
+    }
+  }
+
   @Override
   protected LongStream scanningQuery(long lowestValue, long highestValue)
   {
@@ -530,12 +1020,22 @@ public class SetMap extends DynamicMap
   {
     return keys().filter(key ->
     {
+      long[] cached = setCache.get(key);
       for (long value: values)
-        if (fileAttribute(key, value, DB.NULL, false)!=DB.NULL) return true;
+        if (mergedAttribute(key, cached, value)!=DB.NULL) return true;
       return false;
     });
   }
 
+  protected long mergedAttribute(long key, long[] cached, long value)
+  {
+    long stored = fileAttribute(key, value, DB.NULL, false);
+    if (cached==null || cached[0]==0) return stored;
+    int pos = findPosition(cached, (int)cached[0], value);
+    if (pos>cached[0] || cached[pos]!=value) return stored;
+    return combine(stored, cached[pos+1]);
+  }
+
   /**
    * Range query by attributes for ATTRIBUTEDSET
    * Note that the Stream is not sorted!
@@ -545,7 +1045,12 @@ public class SetMap extends DynamicMap
    */
   public Stream<SetEntry> attributeQuery(long lowestAttribute, long highestAttribute)
   {
-    return scanningAttributeQuery(lowestAttribute, highestAttribute);
+    if (!isAttributeIndexed()) return scanningAttributeQuery(lowestAttribute, highestAttribute);
+    setCache.flushAll();
+    return attributeIndexKeys(lowestAttribute, highestAttribute).mapToObj(key -> entries(key).filter(entry ->
+    {
+      return (entry.attribute >= lowestAttribute && entry.attribute<=highestAttribute);
+    })).flatMap(entries -> entries);
   }
 
   protected Stream<SetEntry> scanningAttributeQuery(long lowestAttribute, long highestAttribute)
@@ -571,12 +1076,28 @@ public class SetMap extends DynamicMap
    */
   public Stream<SetEntry> attributeUnionQuery(long... attributes)
   {
-    return scanningAttributeUnionQuery(attributes);
+    if (!isAttributeIndexed()) return scanningAttributeUnionQuery(attributes);
+    setCache.flushAll();
+    final long[] sorted = attributes.clone();
+    Arrays.sort(sorted);
+
+    LongStream keys = LongStream.of(sorted).filter(attribute -> attribute!=DB.NULL).flatMap(attribute ->
+    {
+      if (attribute>=0) return posAttributeIndex.values(attribute);
+      if (negAttributeIndex==null) return LongStream.empty();
+      return negAttributeIndex.values(-attribute);
+    });
+
+    return keys.distinct().sorted().mapToObj(key -> entries(key).filter(entry ->
+    {
+      return (Arrays.binarySearch(sorted, entry.attribute)>=0);
+    })).flatMap(entries -> entries);
   }
 
   protected Stream<SetEntry> scanningAttributeUnionQuery(long... attributes)
   {
-    Arrays.sort(attributes);
+    final long[] sorted = attributes.clone();
+    Arrays.sort(sorted);
 
     Stream.Builder<SetEntry> b =  Stream.builder();
 
@@ -584,7 +1105,7 @@ public class SetMap extends DynamicMap
     {
       entries(key).filter(entry ->
       {
-        return (Arrays.binarySearch(attributes, entry.attribute)>=0);
+        return (Arrays.binarySearch(sorted, entry.attribute)>=0);
       }).forEach(entry -> b.add(entry));
     });
 
@@ -594,148 +1115,485 @@ public class SetMap extends DynamicMap
   @Override
   public boolean isEmpty()
   {
-    setCache.flushAll();
-    return super.isEmpty();
+    return super.isEmpty() && setCache.isEmpty();
   }
 
   @Override
   public long getCount()
   {
-    setCache.flushAll();
-    return super.getCount();
+    return super.getCount()+cachedOnlyKeys(DB.MIN_VALUE, DB.MAX_VALUE).length;
   }
 
   @Override
   public LongStream keys(long lowestKey, long highestKey)
   {
-    setCache.flushAll();
-    return super.keys(lowestKey, highestKey);
+    long[] cachedOnly = cachedOnlyKeys(lowestKey, highestKey);
+    if (cachedOnly.length==0) return super.keys(lowestKey, highestKey);
+    return Streams.union(super.keys(lowestKey, highestKey), LongStream.of(cachedOnly));
+  }
+
+  @Override
+  public void forEachKey(long lowestKey, long highestKey, LongConsumer action)
+  {
+    long[] cachedOnly = cachedOnlyKeys(lowestKey, highestKey);
+    if (cachedOnly.length==0)
+    {
+      super.forEachKey(lowestKey, highestKey, action);
+      return;
+    }
+    final int[] next = {0};
+    super.forEachKey(lowestKey, highestKey, key ->
+    {
+      while (next[0]<cachedOnly.length && cachedOnly[next[0]]<key) action.accept(cachedOnly[next[0]++]);
+      action.accept(key);
+    });
+    for (int i=next[0]; i<cachedOnly.length; i++) action.accept(cachedOnly[i]);
   }
 
   @Override
   public LongStream keyset()
   {
-    setCache.flushAll();
-    return super.keyset();
+    if (setCache.isEmpty()) return super.keyset();
+    return keys(DB.MIN_VALUE, DB.MAX_VALUE).parallel();
+  }
+
+  /**
+   * The cached keys that are not yet stored, sorted
+   */
+  protected long[] cachedOnlyKeys(long lowestKey, long highestKey)
+  {
+    return LongStream.of(setCache.keys(lowestKey, highestKey)).filter(key -> !super.containsKey(key)).toArray();
   }
 
   @Override
   public boolean containsKey(long key)
   {
-    setCache.flushAll();
-    return super.containsKey(key);
+    return setCache.get(key)!=null || super.containsKey(key);
   }
 
   @Override
   public boolean reserveKey(long key)
   {
-    setCache.flushAll();
-    return super.reserveKey(key);
+    boolean cached = setCache.get(key)!=null;
+    return super.reserveKey(key) && !cached;
   }
 
   @Override
   public void clear()
   {
     setCache.clear();
+    compactionQueue.clear();
+    heavyHitters = null;
     super.clear();
+    if (posAttributeIndex!=null) posAttributeIndex.clear();
+    if (negAttributeIndex!=null) negAttributeIndex.clear();
   }
 
   @Override
   public LongStream query(long lowestValue, long highestValue)
   {
-    setCache.flushAll();
+    if (isIndexed()) setCache.flushAll();
     return super.query(lowestValue, highestValue);
   }
 
   @Override
   public LongStream unionQuery(long... values)
   {
-    setCache.flushAll();
+    if (isIndexed()) setCache.flushAll();
     return super.unionQuery(values);
   }
 
+  /**
+   * Iterates the stored values of a key, skipping removed ones. Skips forward by exponential and binary search.
+   */
+  protected class SlotIterator implements SkippableIterator
+  {
+    protected final DbFile file;
+    protected final long valueBase;
+    protected final int entries;
+    protected int entry;
+    protected int block = -1;
+    protected long[] blockValues;
+    protected long[] blockAttributes;
+
+    protected SlotIterator(long key)
+    {
+      KeyFile header = getData(key, false);
+      int base = header==null ? 0 : header.base(key);
+      if (header==null || header.read(base)==0 || (int)header.read(base+DynamicMap.pLength)==0)
+      {
+        file = null;
+        valueBase = 0;
+        entries = 0;
+        return;
+      }
+      file = slotFile(header, base);
+      valueBase = slotPosition(header, base);
+      entries = compressed ? PackedSet.count(file, valueBase) : (int)header.read(base+DynamicMap.pLength)/2;
+    }
+
+    protected long value(int index)
+    {
+      if (!compressed) return file.read(valueBase+index*2);
+      int i = decode(index);
+      return blockValues[i];
+    }
+
+    protected long attribute(int index)
+    {
+      if (!compressed) return file.read(valueBase+index*2+1);
+      int i = decode(index);
+      return blockAttributes[i];
+    }
+
+    /**
+     * Decodes the block of a packed set that holds the entry
+     * @return index of the entry within the block
+     */
+    protected int decode(int index)
+    {
+      int b = index/PackedSet.BLOCK;
+      if (b!=block)
+      {
+        if (blockValues==null)
+        {
+          blockValues = new long[PackedSet.BLOCK];
+          blockAttributes = new long[PackedSet.BLOCK];
+        }
+        PackedSet.decode(file, valueBase, b, blockValues, blockAttributes);
+        block = b;
+      }
+      return index%PackedSet.BLOCK;
+    }
+
+    protected boolean skipRemoved()
+    {
+      if (compressed) return entry<entries;
+      while (entry<entries && attribute(entry)==DB.NULL) entry++;
+      return entry<entries;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      return skipRemoved();
+    }
+
+    @Override
+    public long nextLong()
+    {
+      if (!skipRemoved()) throw new NoSuchElementException();
+      return value(entry++);
+    }
+
+    @Override
+    public long advance(long target)
+    {
+      if (!skipRemoved()) return DB.NULL;
+      if (value(entry)<target)
+      {
+        int limit = entries;
+        if (compressed)
+        {
+          int b = PackedSet.findBlock(file, valueBase, entry/PackedSet.BLOCK, target);
+          entry = Math.max(entry, b*PackedSet.BLOCK);
+          limit = Math.min(entries, (b+1)*PackedSet.BLOCK);
+        }
+        int low = entry;
+        int bound = 1;
+        while (entry+bound<limit && value(entry+bound)<target)
+        {
+          low = entry+bound;
+          bound <<= 1;
+        }
+        int high = Math.min(entry+bound, limit);
+        while (low+1<high)
+        {
+          int middle = (low+high) >>> 1;
+          if (value(middle)<target) low = middle; else high = middle;
+        }
+        entry = high;
+        if (!skipRemoved()) return DB.NULL;
+      }
+      return value(entry);
+    }
+
+    @Override
+    public long size()
+    {
+      return entries-entry;
+    }
+  }
+
+  /**
+   * Iterates the stored values of a key merged with its cached entries
+   */
+  protected class MergingIterator implements SkippableIterator
+  {
+    protected final long key;
+    protected final SlotIterator stored;
+    protected final long[] cached;
+    protected final int cacheEnd;
+    protected int cachePos = 2;
+    protected long head;
+    protected boolean headKnown;
+
+    protected MergingIterator(long key, long[] cached)
+    {
+      this.key = key;
+      this.stored = new SlotIterator(key);
+      this.cached = cached;
+      cacheEnd = (int)cached[0]+2;
+    }
+
+    protected long head()
+    {
+      if (headKnown) return head;
+      while (true)
+      {
+        long storedValue = stored.advance(DB.NULL);
+        long cachedValue = cachePos<cacheEnd ? cached[cachePos] : DB.NULL;
+        if (cachedValue==DB.NULL || (storedValue!=DB.NULL && storedValue<cachedValue)) head = storedValue;
+        else if (combine(fileAttribute(key, cachedValue, DB.NULL, false), cached[cachePos+1])!=DB.NULL) head = cachedValue;
+        else
+        {
+          if (storedValue==cachedValue) stored.nextLong();
+          cachePos+=2;
+          continue;
+        }
+        headKnown = true;
+        return head;
+      }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      return head()!=DB.NULL;
+    }
+
+    @Override
+    public long nextLong()
+    {
+      long value = head();
+      if (value==DB.NULL) throw new NoSuchElementException();
+      if (cachePos<cacheEnd && cached[cachePos]==value) cachePos+=2;
+      if (stored.advance(DB.NULL)==value) stored.nextLong();
+      headKnown = false;
+      return value;
+    }
+
+    @Override
+    public long advance(long target)
+    {
+      if (head()==DB.NULL || head>=target) return head;
+      stored.advance(target);
+      while (cachePos<cacheEnd && cached[cachePos]<target) cachePos+=2;
+      headKnown = false;
+      return head();
+    }
+
+    @Override
+    public long size()
+    {
+      return stored.size()+(cacheEnd-cachePos)/2;
+    }
+  }
+
+  /**
+   * Write buffer of a SetMap: an open addressing (linear probing) hash table from keys to cached sets.
+   * <p>
+   * Memory is limited both by count of sets and by bytes. When either limit would be exceeded, a CLOCK sweep
+   * writes back the sets that have not been touched since the previous sweep, so hot sets stay cached.
+   */
   protected static class SetCache
   {
+    protected static final long EMPTY = -1;
+
     protected final SetMap setMap;
-    protected final long[][] memory;
-    protected int nextAddress = 0;
+    protected final int maxSets;
+    protected final long maxBytes;
+
+    protected final long[] keys;
+    protected final long[][] sets;
+    protected final boolean[] referenced;
+    protected final int mask;
 
-    protected final Collection<SetCache> caches = new ArrayList<>();
-    private final long[][] keyMap;
+    protected int size;
+    protected long bytes;
+    protected int hand;
 
-    public SetCache(SetMap setMap, int MAXCACHEDSETSIZE)
+    public SetCache(SetMap setMap, int MAXCACHEDSETSIZE, long MAXCACHEDSETBYTES)
     {
       this.setMap = setMap;
-      caches.add(this);
-      memory = new long[MAXCACHEDSETSIZE][];
-      keyMap = new long[MAXCACHEDSETSIZE][21];
+      maxSets = MAXCACHEDSETSIZE;
+      maxBytes = MAXCACHEDSETBYTES;
+      int capacity = Integer.highestOneBit(Math.max(2, MAXCACHEDSETSIZE) * 2 - 1) * 2;
+      keys = new long[capacity];
+      Arrays.fill(keys, EMPTY);
+      sets = new long[capacity][];
+      referenced = new boolean[capacity];
+      mask = capacity-1;
+    }
+
+    protected static int hash(long key)
+    {
+      key ^= key >>> 33;
+      key *= 0xff51afd7ed558ccdl;
+      key ^= key >>> 33;
+      return (int) key;
+    }
+
+    protected static long bytes(long[] set)
+    {
+      return 16+set.length*8l;
+    }
+
+    protected int find(long key)
+    {
+      int i = hash(key) & mask;
+      while (keys[i]!=EMPTY)
+      {
+        if (keys[i]==key) return i;
+        i = (i+1) & mask;
+      }
+      return -1;
     }
 
     public void clear()
     {
-      Arrays.fill(keyMap, 0);
+      Arrays.fill(keys, EMPTY);
+      Arrays.fill(sets, null);
+      Arrays.fill(referenced, false);
+      size = 0;
+      bytes = 0;
     }
 
     public long[] get(final long key)
     {
-      long[] hashedKeys = keyMap[(int) (key % keyMap.length)];
+      if (size==0) return null;
+      int i = find(key);
+      if (i==-1) return null;
+      referenced[i] = true;
+      return sets[i];
+    }
+
+    /**
+     * Caches a set, or replaces the cached set of the key (when grown). May write back other sets to make room.
+     */
+    public void put(final long key, final long[] set)
+    {
+      int i = find(key);
+      long oldBytes = i==-1 ? 0 : bytes(sets[i]);
+      makeRoom(bytes(set)-oldBytes, i==-1 ? 1 : 0, key);
+      if (i!=-1) i = find(key); //evictions may have shifted the key
 
-      for (int i = 1; i<hashedKeys[0]; i+=2)
-        if (hashedKeys[i]==key) return memory[(int) (hashedKeys[i+1])];
-      return null;
+      if (i==-1)
+      {
+        i = hash(key) & mask;
+        while (keys[i]!=EMPTY) i = (i+1) & mask;
+        keys[i] = key;
+        size++;
+      }
+      sets[i] = set;
+      referenced[i] = true;
+      bytes += bytes(set)-oldBytes;
     }
 
-    public void put(final long key, final long[] value)
+    protected void makeRoom(long moreBytes, int moreSets, long keepKey)
     {
-      long[] hashedKeys = keyMap[(int) (key % keyMap.length)];
-      for (int i = 1; i<hashedKeys[0]; i+=2)
-        if (hashedKeys[i]==key)
+      int sweeps = 0;
+      while (size>0 && (size+moreSets>maxSets || bytes+moreBytes>maxBytes))
+      {
+        if (keys[hand]!=EMPTY && keys[hand]!=keepKey)
         {
-          memory[(int) (hashedKeys[i+1])] = value;
-          return;
+          //eviction may shift the next entry to the hand, so the hand stays to check it
+          if (!referenced[hand])
+          {
+            evict(hand);
+            continue;
+          }
+          referenced[hand] = false;
         }
-      if (nextAddress == memory.length) flushAll();
-      else if (hashedKeys[0]==20) flush(key);
-      hashedKeys[(int) hashedKeys[0]+1] = key;
-      hashedKeys[(int) hashedKeys[0]+2] = nextAddress;
-      memory[nextAddress] = value;
-      hashedKeys[0]+=2;
-      nextAddress++;
+        hand = (hand+1) & mask;
+        if (hand==0 && ++sweeps>2) return;
+      }
     }
 
-    public void flush(long key)
+    protected void evict(int i)
     {
-      long[] hashedKeys = keyMap[(int) (key % keyMap.length)];
-      for (int i = 1; i<hashedKeys[0]; i+=2)
+      long key = keys[i];
+      long[] set = sets[i];
+      removeAt(i);
+      setMap.writeCached(key, set);
+    }
+
+    protected void removeAt(int i)
+    {
+      bytes -= bytes(sets[i]);
+      size--;
+      int j = i;
+      while (true)
       {
-        setMap.writeCached(hashedKeys[i], memory[(int) (hashedKeys[i+1])]);
-        memory[(int) (hashedKeys[i+1])] = null;
+        j = (j+1) & mask;
+        if (keys[j]==EMPTY) break;
+        int home = hash(keys[j]) & mask;
+        boolean stays = i<=j ? (i<home && home<=j) : (i<home || home<=j);
+        if (stays) continue;
+        keys[i] = keys[j];
+        sets[i] = sets[j];
+        referenced[i] = referenced[j];
+        i = j;
       }
-      hashedKeys[0] = 0;
+      keys[i] = EMPTY;
+      sets[i] = null;
+      referenced[i] = false;
+    }
+
+    /**
+     * Writes the cached set of a key to disk
+     */
+    public void flush(long key)
+    {
+      int i = find(key);
+      if (i!=-1) evict(i);
     }
 
     public void flushAll()
     {
-      if (needsFlushing()) for (int i = 0; i<keyMap.length; i++) flush(i);
-      nextAddress = 0;
+      if (size==0) return;
+      for (int i = 0; i<keys.length; i++)
+        if (keys[i]!=EMPTY) setMap.writeCached(keys[i], sets[i]);
+      clear();
     }
 
-    protected boolean needsFlushing()
+    public boolean isEmpty()
     {
-      return nextAddress > 0;
+      return size==0;
     }
 
+    /**
+     * The cached keys within the bounds, sorted
+     */
+    public long[] keys(long lowestKey, long highestKey)
+    {
+      if (size==0) return new long[0];
+      long[] result = new long[size];
+      int count = 0;
+      for (int i = 0; i<keys.length; i++)
+        if (keys[i]!=EMPTY && keys[i]>=lowestKey && keys[i]<=highestKey) result[count++] = keys[i];
+      result = Arrays.copyOf(result, count);
+      Arrays.sort(result);
+      return result;
+    }
+
+    /**
+     * Discards the cached set of a key without writing it
+     */
     public void remove(final long key)
     {
-      long[] hashedKeys = keyMap[(int) (key % keyMap.length)];
-      for (int i = 1; i<hashedKeys[0]; i+=2)
-        if (hashedKeys[i]==key)
-        {
-          //TODO not working?
-          memory[(int) (hashedKeys[i]+1)] = null;
-          hashedKeys[i] = -1;
-          return;
-        }
+      int i = find(key);
+      if (i!=-1) removeAt(i);
     }
   }
 
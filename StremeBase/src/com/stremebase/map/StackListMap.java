@@ -11,12 +11,15 @@
 
 package com.stremebase.map;
 
+import java.nio.LongBuffer;
 import java.util.Arrays;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
 import java.util.stream.LongStream;
+import com.stremebase.base.Aggregate;
 import com.stremebase.base.DB;
 import com.stremebase.base.DynamicMap;
 import com.stremebase.file.KeyFile;
-import com.stremebase.file.ValueFile;
 
 /**
  * A map for associating a dynamically expanding array of values with a key.
@@ -68,8 +71,28 @@ public class StackListMap extends DynamicMap
    */
   public void push(long key, long... values)
   {
-    int position = (int) getValueCount(key);
-    for (int i=0; i<values.length; i++) super.put(key, position+i, values[i]);
+    super.put(key, (int) getValueCount(key), values);
+  }
+
+  /**
+   * Replaces the contents of the stack in one batch
+   * @param key the key
+   * @param values the new contents
+   */
+  public void set(long key, long... values)
+  {
+    int oldSize = (int) getValueCount(key);
+    long[] tail = null;
+    if (isIndexed() && values.length<oldSize)
+    {
+      tail = new long[oldSize-values.length];
+      for (int i=0; i<tail.length; i++) tail[i] = super.get(key, values.length+i);
+    }
+    super.put(key, 0, values);
+    shrinkValueSize(key, values.length);
+    if (tail==null) return;
+    long[] kept = distinctValues(values);
+    for (long value: distinctValues(tail)) if (Arrays.binarySearch(kept, value)<0) indexer.unIndex(key, value);
   }
 
   /**
@@ -102,7 +125,7 @@ public class StackListMap extends DynamicMap
     super.put(key, index, value);
     if (index==getValueCount(key)-1 && value==DB.NULL)
     {
-      while (index >= 0) if (super.get(key, index)==DB.NULL) index--;
+      while (index >= 0 && super.get(key, index)==DB.NULL) index--;
       shrinkValueSize(key, index+1);
     }
   }
@@ -122,6 +145,17 @@ public class StackListMap extends DynamicMap
     return super.get(key, index);
   }
 
+  /**
+   * The contents of the stack as a read-only view over the stored values, without copying them.
+   * The view is valid until the stack is modified next.
+   * @param key the key
+   * @return the view, or null
+   */
+  public LongBuffer getView(long key)
+  {
+    return view(key);
+  }
+
   /**
    * The contents of the stack, skipping DB.NULLs
    * @param key the key
@@ -133,10 +167,9 @@ public class StackListMap extends DynamicMap
     if (header==null) return null;
     int base = header.base(key);
     if (header.read(base)==0) return null;
-    ValueFile file = fileManager.getValueFile(mapGetter, header.read(base+pSlotFileId));
     int length = (int)header.read(base+pLength);
     long[] result = new long[length];
-    file.readToArray((int)header.read(base+pSlotFilePosition), result, length);
+    slotFile(header, base).readToArray(slotPosition(header, base), result, length);
     return result;
   }
 
@@ -159,6 +192,12 @@ public class StackListMap extends DynamicMap
     return super.values(key, skipNulls);
   }
 
+  @Override
+  public void forEachValue(long key, LongConsumer action)
+  {
+    forEachValue(key, skipNulls, action);
+  }
+
   /**
    * Returns the first index of value, starting from fromIndex
    * or -1 if not found
@@ -184,23 +223,50 @@ public class StackListMap extends DynamicMap
     else return LongStream.of(values).filter(value->value!=DB.NULL).allMatch(value -> (Arrays.binarySearch(list, value)>=0 ? true : false));
   }
 
+  /**
+   * Aggregates the values of all stacks
+   * @return the aggregate
+   */
+  public Aggregate aggregate()
+  {
+    return aggregateLists(0, Long.MAX_VALUE, DB.NULL, Long.MAX_VALUE, null);
+  }
+
+  /**
+   * Aggregates the values in range of the stacks of a range of keys
+   * @param lowestKey lowest key, inclusive
+   * @param highestKey highest key, inclusive
+   * @param lowestValue lowest value, inclusive
+   * @param highestValue highest value, inclusive
+   * @return the aggregate
+   */
+  public Aggregate aggregate(long lowestKey, long highestKey, long lowestValue, long highestValue)
+  {
+    return aggregateLists(lowestKey, highestKey, lowestValue, highestValue, null);
+  }
+
+  /**
+   * Aggregates the values of the stacks of a range of keys that pass a predicate. The predicate is called in parallel.
+   * @param lowestKey lowest key, inclusive
+   * @param highestKey highest key, inclusive
+   * @param predicate the predicate
+   * @return the aggregate
+   */
+  public Aggregate aggregate(long lowestKey, long highestKey, LongPredicate predicate)
+  {
+    return aggregateLists(lowestKey, highestKey, DB.NULL, Long.MAX_VALUE, predicate);
+  }
+
   @Override
   protected LongStream scanningQuery(long lowestValue, long highestValue)
   {
-    return keys().filter(key ->
-    {
-      return values(key).anyMatch(value -> (value!= DB.NULL && value >= lowestValue && value<=highestValue));
-    });
+    return scanLists(lowestValue, highestValue, null);
   }
 
   @Override
   protected LongStream scanningUnionQuery(long... values)
   {
     Arrays.sort(values);
-
-    return keys().filter(key ->
-    {
-      return values(key).anyMatch(value -> (Arrays.binarySearch(values, value)>=0 ? true : false));
-    });
+    return scanLists(DB.NULL, DB.NULL, values);
   }
 }
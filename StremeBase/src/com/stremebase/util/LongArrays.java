@@ -34,6 +34,39 @@ public class LongArrays
     return -1;
   }
 
+  /**
+   * Whether any value of a range of the array is between the bounds. DB.NULL is never between.
+   * The bounds are tested with one unsigned comparison per value.
+   * @param array the array
+   * @param from first index, inclusive
+   * @param to last index, exclusive
+   * @param lowestValue lowest value, inclusive
+   * @param highestValue highest value, inclusive
+   * @return true if any is
+   */
+  public static boolean anyInRange(long[] array, int from, int to, long lowestValue, long highestValue)
+  {
+    if (lowestValue==DB.NULL) lowestValue++;
+    if (highestValue<lowestValue) return false;
+    long width = highestValue-lowestValue+Long.MIN_VALUE;
+    for (int i=from; i<to; i++) if (array[i]-lowestValue+Long.MIN_VALUE<=width) return true;
+    return false;
+  }
+
+  /**
+   * Whether any value of a range of the array is one of the given values. DB.NULL never is.
+   * @param array the array
+   * @param from first index, inclusive
+   * @param to last index, exclusive
+   * @param sortedValues the values, sorted
+   * @return true if any is
+   */
+  public static boolean anyIn(long[] array, int from, int to, long[] sortedValues)
+  {
+    for (int i=from; i<to; i++) if (array[i]!=DB.NULL && Arrays.binarySearch(sortedValues, array[i])>=0) return true;
+    return false;
+  }
+
   public static int getDimensionCount(Object array)
   {
     if (array==null) return -1;
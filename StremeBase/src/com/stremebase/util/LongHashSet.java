@@ -0,0 +1,113 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+package com.stremebase.util;
+
+import java.util.Arrays;
+
+import com.stremebase.base.DB;
+
+
+/**
+ * A set of primitive longs with open addressing and linear probing. DB.NULL cannot be added.
+ * <p>
+ * Used as the build side of hash joins, where boxing every key into a HashSet would dominate the cost.
+ * @author olli
+ */
+public class LongHashSet
+{
+  protected long[] slots;
+  protected int mask;
+  protected int size;
+
+  /**
+   * Creates the set
+   * @param expectedSize how many values will be added, approximately
+   */
+  public LongHashSet(int expectedSize)
+  {
+    int capacity = Integer.highestOneBit(Math.max(4, expectedSize)*2-1)*2;
+    slots = new long[capacity];
+    Arrays.fill(slots, DB.NULL);
+    mask = capacity-1;
+  }
+
+  /**
+   * Creates the set from values
+   * @param values the values, duplicates and DB.NULLs allowed
+   */
+  public LongHashSet(long[] values)
+  {
+    this(values.length);
+    for (long value: values) add(value);
+  }
+
+  /**
+   * Count of values in the set
+   * @return the count
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Adds a value
+   * @param value the value
+   * @return true, if the value was not in the set already
+   */
+  public boolean add(long value)
+  {
+    if (value==DB.NULL) return false;
+    int slot = slot(value);
+    while (slots[slot]!=DB.NULL)
+    {
+      if (slots[slot]==value) return false;
+      slot = (slot+1) & mask;
+    }
+    slots[slot] = value;
+    if (++size*2>slots.length) grow();
+    return true;
+  }
+
+  /**
+   * Tells whether the value is in the set
+   * @param value the value
+   * @return true, if found
+   */
+  public boolean contains(long value)
+  {
+    if (value==DB.NULL) return false;
+    int slot = slot(value);
+    while (slots[slot]!=DB.NULL)
+    {
+      if (slots[slot]==value) return true;
+      slot = (slot+1) & mask;
+    }
+    return false;
+  }
+
+  protected int slot(long value)
+  {
+    long hash = value*0x9E3779B97F4A7C15l;
+    return (int)(hash ^ (hash >>> 32)) & mask;
+  }
+
+  protected void grow()
+  {
+    long[] oldSlots = slots;
+    slots = new long[oldSlots.length*2];
+    Arrays.fill(slots, DB.NULL);
+    mask = slots.length-1;
+    size = 0;
+    for (long value: oldSlots) if (value!=DB.NULL) add(value);
+  }
+}
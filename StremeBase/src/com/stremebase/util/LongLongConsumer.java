@@ -0,0 +1,28 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+package com.stremebase.util;
+
+
+/**
+ * An operation that accepts two longs, such as a value and its attribute. The primitive two-argument LongConsumer.
+ * @author olli
+ */
+@FunctionalInterface
+public interface LongLongConsumer
+{
+  /**
+   * Performs the operation
+   * @param first the first argument
+   * @param second the second argument
+   */
+  void accept(long first, long second);
+}
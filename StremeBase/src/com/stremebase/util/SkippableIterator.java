@@ -0,0 +1,38 @@
+/*
+ * ---------------------------------------------------------
+ * BEER-WARE LICENSED
+ * This file is based on original work by Olli Niinivaara.
+ * As long as you retain this notice you can do whatever
+ * you want with this stuff. If you meet him one day, and
+ * you think this stuff is worth it, you can buy him a
+ * beer in return.
+ * ---------------------------------------------------------
+ */
+
+package com.stremebase.util;
+
+import java.util.PrimitiveIterator;
+
+
+/**
+ * An iterator over ascending, distinct values that can skip forward without visiting the values in between.
+ * <p>
+ * Intersections use it to leapfrog: a rare value list drives, and long lists are skipped by search instead of scanned.
+ * See {@link Streams#intersection(SkippableIterator...)}.
+ * @author olli
+ */
+public interface SkippableIterator extends PrimitiveIterator.OfLong
+{
+  /**
+   * Moves to the first remaining value that is at least the target. The value is not consumed: nextLong() returns it next.
+   * @param target the target
+   * @return the value, or DB.NULL if there are no more values
+   */
+  long advance(long target);
+
+  /**
+   * Upper bound for the count of remaining values, used to order iterators
+   * @return the bound, Long.MAX_VALUE if not known
+   */
+  long size();
+}
@@ -12,8 +12,11 @@
 package com.stremebase.util;
 
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
 import java.util.PrimitiveIterator;
 import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.function.LongConsumer;
 import java.util.stream.LongStream;
 import java.util.stream.StreamSupport;
@@ -46,6 +49,8 @@ public final class Streams
 
   /**
    * Returns intersection of the input streams. Fast, but input streams MUST be ordered.
+   * <p>
+   * Streams of {@link #stream(SkippableIterator)} (such as SetMap values) are skipped forward by search, others are scanned.
    * @param streams the streams to be intersected
    * @return intersection of streams as a stream
    */
@@ -54,36 +59,144 @@ public final class Streams
     if (streams == null) return LongStream.empty();
     for (LongStream stream: streams) if (stream == null) return LongStream.empty();
     if (streams.length==1) return streams[0];
-    return StreamSupport.longStream(s.new StreamIntersector(streams), false);
+    SkippableIterator[] iterators = new SkippableIterator[streams.length];
+    for (int i=0; i<streams.length; i++) iterators[i] = iterator(streams[i]);
+    return intersection(iterators);
+  }
+
+  /**
+   * Returns intersection of ascending iterators. The smallest iterator drives and the others skip forward to its values.
+   * @param iterators the iterators
+   * @return intersection as a stream
+   */
+  public static LongStream intersection(SkippableIterator... iterators)
+  {
+    if (iterators == null || iterators.length==0) return LongStream.empty();
+    for (SkippableIterator iterator: iterators) if (iterator == null) return LongStream.empty();
+    if (iterators.length==1) return stream(iterators[0]);
+    return StreamSupport.longStream(s.new StreamIntersector(iterators), false);
+  }
+
+  /**
+   * Wraps a skippable iterator to a stream. Intersections recognize the stream and skip it instead of scanning.
+   * @param iterator the iterator
+   * @return the stream
+   */
+  public static LongStream stream(SkippableIterator iterator)
+  {
+    return StreamSupport.longStream(s.new SkippableSpliterator(iterator), false);
+  }
+
+  /**
+   * Returns a skippable iterator for an ordered stream: the original iterator if the stream was created with {@link #stream(SkippableIterator)},
+   * otherwise one that skips by scanning
+   * @param stream the stream
+   * @return the iterator
+   */
+  public static SkippableIterator iterator(LongStream stream)
+  {
+    Spliterator.OfLong spliterator = stream.spliterator();
+    if (spliterator instanceof SkippableSpliterator) return ((SkippableSpliterator)spliterator).iterator;
+    return s.new ScanningIterator(spliterator);
+  }
+
+  /**
+   * Skippable iterator over an ascending array, skips by exponential and binary search
+   * @param sortedValues the values
+   * @param length count of values to use from the beginning of the array
+   * @return the iterator
+   */
+  public static SkippableIterator iterator(long[] sortedValues, int length)
+  {
+    return s.new ArrayIterator(sortedValues, length);
   }
 
   class StreamIntersector implements Spliterator.OfLong
   {
-    PrimitiveIterator.OfLong[] streams;
-    long[] keys;
-    long candidate = DB.NULL;
+    final SkippableIterator[] iterators;
+    long target = Long.MIN_VALUE;
+    boolean done;
 
-    StreamIntersector(LongStream... inputStreams)
+    StreamIntersector(SkippableIterator... iterators)
     {
-      candidate = DB.NULL;
+      this.iterators = iterators.clone();
+      Arrays.sort(this.iterators, (i1, i2) -> Long.compare(i1.size(), i2.size()));
+    }
 
-      this.streams = new PrimitiveIterator.OfLong[inputStreams.length];
-      for (int i=0; i<inputStreams.length; i++) this.streams[i] = inputStreams[i].iterator();
+    @Override
+    public long estimateSize()
+    {
+      return iterators[0].size();
+    }
 
-      keys = new long[inputStreams.length];
-      Arrays.fill(keys, DB.NULL+1);
+    @Override
+    public int characteristics()
+    {
+      return DISTINCT | IMMUTABLE | NONNULL | ORDERED;
+    }
+
+    @Override
+    public java.util.Spliterator.OfLong trySplit()
+    {
+      return null;
+    }
+
+    @Override
+    public boolean tryAdvance(LongConsumer action)
+    {
+      if (done) return false;
+      long candidate = iterators[0].advance(target);
+      if (candidate==DB.NULL) return end();
+
+      for (int i = 1; i<iterators.length; i++)
+      {
+        long value = iterators[i].advance(candidate);
+        if (value==DB.NULL) return end();
+        if (value>candidate)
+        {
+          candidate = iterators[0].advance(value);
+          if (candidate==DB.NULL) return end();
+          i = 0;
+        }
+      }
+
+      if (candidate==Long.MAX_VALUE) done = true; else target = candidate+1;
+      action.accept(candidate);
+      return true;
+    }
+
+    protected boolean end()
+    {
+      done = true;
+      return false;
+    }
+  }
+
+  class SkippableSpliterator implements Spliterator.OfLong
+  {
+    final SkippableIterator iterator;
+
+    SkippableSpliterator(SkippableIterator iterator)
+    {
+      this.iterator = iterator;
     }
 
     @Override
     public long estimateSize()
     {
-      return Long.MAX_VALUE;
+      return iterator.size();
     }
 
     @Override
     public int characteristics()
     {
-      return DISTINCT | IMMUTABLE | NONNULL | ORDERED;
+      return DISTINCT | SORTED | IMMUTABLE | NONNULL | ORDERED;
+    }
+
+    @Override
+    public Comparator<? super Long> getComparator()
+    {
+      return null;
     }
 
     @Override
@@ -95,22 +208,116 @@ public final class Streams
     @Override
     public boolean tryAdvance(LongConsumer action)
     {
-      outerloop: while (true)
+      if (!iterator.hasNext()) return false;
+      action.accept(iterator.nextLong());
+      return true;
+    }
+  }
+
+  class ScanningIterator implements SkippableIterator
+  {
+    final PrimitiveIterator.OfLong iterator;
+    final long size;
+    long next;
+    boolean peeked;
+
+    ScanningIterator(Spliterator.OfLong spliterator)
+    {
+      long exactSize = spliterator.getExactSizeIfKnown();
+      size = exactSize==-1 ? Long.MAX_VALUE : exactSize;
+      iterator = Spliterators.iterator(spliterator);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      if (peeked) return true;
+      if (!iterator.hasNext()) return false;
+      next = iterator.nextLong();
+      peeked = true;
+      return true;
+    }
+
+    @Override
+    public long nextLong()
+    {
+      if (!hasNext()) throw new NoSuchElementException();
+      peeked = false;
+      return next;
+    }
+
+    @Override
+    public long advance(long target)
+    {
+      while (hasNext())
       {
-        for (int i = 0; i<streams.length; i++)
+        if (next>=target) return next;
+        peeked = false;
+      }
+      return DB.NULL;
+    }
+
+    @Override
+    public long size()
+    {
+      return size;
+    }
+  }
+
+  class ArrayIterator implements SkippableIterator
+  {
+    final long[] values;
+    final int length;
+    int position;
+
+    ArrayIterator(long[] values, int length)
+    {
+      this.values = values;
+      this.length = length;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      return position<length;
+    }
+
+    @Override
+    public long nextLong()
+    {
+      if (position>=length) throw new NoSuchElementException();
+      return values[position++];
+    }
+
+    @Override
+    public long advance(long target)
+    {
+      if (position>=length) return DB.NULL;
+      if (values[position]<target)
+      {
+        int low = position;
+        int bound = 1;
+        while (position+bound<length && values[position+bound]<target)
+        {
+          low = position+bound;
+          bound <<= 1;
+        }
+        int high = Math.min(position+bound, length);
+        while (low+1<high)
         {
-          if (keys[i] == candidate) continue;
-          if (keys[i]<candidate || candidate==DB.NULL)
-          {
-            if (!streams[i].hasNext()) return false;
-            keys[i] = streams[i].nextLong();
-            if (keys[i]>candidate) candidate = keys[i];
-            continue outerloop;
-          }
+          int middle = (low+high) >>> 1;
+          if (values[middle]<target) low = middle; else high = middle;
         }
-        action.accept(candidate++);
-        return true;
+        position = high;
+        if (position>=length) return DB.NULL;
       }
+      return values[position];
+    }
+
+    @Override
+    public long size()
+    {
+      return length-position;
     }
   }
 